@@ -6,21 +6,19 @@ import android.app.AlertDialog;
 import android.app.PendingIntent;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.hardware.usb.UsbDevice;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.AppCompatButton;
 import android.content.pm.PackageManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -28,6 +26,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -37,10 +36,13 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.divertsy.hid.ble.BLEScanner;
-import com.divertsy.hid.ble.Beacon;
+import com.divertsy.hid.ble.BeaconLocation;
+import com.divertsy.hid.scale.ScaleSourceBus;
+import com.divertsy.hid.sync.SyncBackends;
 import com.divertsy.hid.usb.ScaleMeasurement;
 import com.divertsy.hid.usb.UsbScaleManager;
-import com.divertsy.hid.utils.AppUpdater;
+import com.divertsy.hid.utils.AppUpdateWatcher;
+import com.divertsy.hid.utils.StartupTrace;
 import com.divertsy.hid.utils.Utils;
 import com.divertsy.hid.utils.WeightRecorder;
 import com.google.android.gms.common.GoogleApiAvailability;
@@ -48,8 +50,12 @@ import com.google.android.gms.common.server.converter.StringToIntConverter;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.google.android.gms.common.ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED;
@@ -57,7 +63,8 @@ import static com.google.android.gms.common.ConnectionResult.SERVICE_VERSION_UPD
 /**
  * MainActivity this is the main Divertsy class. It handles UI updates and button presses.
  */
-public class MainActivity extends AppCompatActivity implements UsbScaleManager.Callbacks, BLEScanner.OnClosestChangedListener {
+public class MainActivity extends AppCompatActivity implements UsbScaleManager.Callbacks, BLEScanner.OnClosestChangedListener,
+        ScaleSourceBus.Listener {
 
     private static final String TAG = "DIVERTSY";
 
@@ -73,7 +80,6 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
     private static final int REQUEST_WRITE_STORAGE = 112;
 
-    private Handler mHandler = new MainHandler(this);
     private Handler mDialogDismissHandler = new ActivityHandler(this);
 
     public static class ActivityHandler extends Handler {
@@ -84,27 +90,9 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         }
     }
 
-    /**
-     * Sets the new beacon after 4 seconds so it doesn't fluctuate incorrectly
-     */
-    public static class MainHandler extends ActivityHandler {
-        public MainHandler(MainActivity activity) {
-            super(activity);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            MainActivity mActivity = mRef.get();
-            if (mActivity != null) {
-                Beacon closest = (Beacon) msg.obj;
-                List<String> segments = closest.urlStatus.getUrl().getPathSegments();
-                mActivity.updateClosestBeacon(closest.urlStatus.toString(), segments.get(0), segments.get(1));
-            }
-        }
-    }
-
     private long mLastSendTime = 0;
     private UsbScaleManager mUsbScaleManager;
+    private AppUpdateWatcher mAppUpdateWatcher;
     private WeightRecorder mWeightRecorder;
     private String mFloor;
     private String mPlace;
@@ -114,11 +102,18 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
     private TextView mWeight;
     private TextView mWeightUnit;
     private TextView mLocation;
+    // The waste stream buttons on screen, so initView only has to change what's different
+    private final Map<String, AppCompatButton> mStreamButtons = new HashMap<>();
+    private List<String> mShownStreams;
+    private WasteStreams mShownWasteStreams;
+    private AlertDialog mManualWeightDialog;
 
     private BLEScanner mBLEScanner;
 
-    // Required for Remote Scales
-    private BroadcastReceiver mRemoteScaleReceiver;
+    // Bluetooth and dialogs wait for the first frame of the weight screen
+    private boolean mFirstFrameDrawn;
+    private boolean mResumed;
+
     private ScaleMeasurement mLatestScaleMeasurement;
 
     @Override
@@ -159,6 +154,7 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long started = StartupTrace.begin("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         Log.v(TAG, "Starting Divertsy - OnCreate");
 
@@ -170,8 +166,7 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
         mWeightRecorder = new WeightRecorder(this);
 
-        checkIfBluetoothEnabled();
-
+        long step = StartupTrace.begin("setContentView");
         setContentView(R.layout.activity_main);
         mWeight = (TextView) findViewById(R.id.weight);
         mWeightUnit = (TextView) findViewById(R.id.weight_unit);
@@ -179,18 +174,45 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
         mScaleName = (TextView) findViewById(R.id.status_bar_text);
         mStatusBar = (LinearLayout) findViewById(R.id.status_bar);
+        StartupTrace.end("setContentView", step);
 
+        // Look for update APKs now and whenever the sync tool drops in a new one
+        mAppUpdateWatcher = new AppUpdateWatcher(new AppUpdateWatcher.Listener() {
+            @Override
+            public void onUpdateAvailable(File apk) {
+                if (!isFinishing()) {
+                    startAppUpdate(apk);
+                }
+            }
+        });
+        mAppUpdateWatcher.start();
 
-        if (savedInstanceState == null) {
-
-            // check for App Update
-            File updateFile = AppUpdater.checkAppUpdate();
-            if (updateFile != null) {
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                intent.setDataAndType(Uri.fromFile(updateFile), "application/vnd.android.package-archive");
-                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                startActivity(intent);
+        // The built in waste streams show first, a sync folder override replaces them once read
+        runStartupStep("WasteStreams.loadOverride", new Runnable() {
+            @Override
+            public void run() {
+                if (WasteStreams.loadOverride()) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) {
+                                initView();
+                            }
+                        }
+                    });
+                }
             }
+        });
+
+        if (savedInstanceState == null) {
+            // Pick up anything that was still waiting to sync when the app last stopped
+            final Context appContext = getApplicationContext();
+            runStartupStep("SyncBackends.resumePending", new Runnable() {
+                @Override
+                public void run() {
+                    SyncBackends.resumePending(appContext);
+                }
+            });
         } else {
             updateClosestBeacon(
                     savedInstanceState.getString(KEY_URL_TEXT),
@@ -200,8 +222,70 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         }
 
         mUsbScaleManager = new UsbScaleManager(this, getIntent(), this, savedInstanceState);
+        if (mUsbScaleManager.needsDeviceSearch()) {
+            final UsbScaleManager usbScaleManager = mUsbScaleManager;
+            runStartupStep("UsbManager.getDeviceList", new Runnable() {
+                @Override
+                public void run() {
+                    final HashMap<String, UsbDevice> devices = usbScaleManager.getDeviceList();
+                    runOnUiThread(StartupTrace.traced("UsbScaleManager.searchForDevice", new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isFinishing()) {
+                                usbScaleManager.searchForDevice(MainActivity.this, devices);
+                            }
+                        }
+                    }));
+                }
+            });
+        }
 
-        initView();
+        // The rest waits until the weight screen is on the display
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.firstFrameDrawn(TAG);
+                // Posted, so it runs once this frame has been drawn
+                mDialogDismissHandler.post(StartupTrace.traced("MainActivity.afterFirstFrame",
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                afterFirstFrame();
+                            }
+                        }));
+                return true;
+            }
+        });
+        StartupTrace.end("MainActivity.onCreate", started);
+    }
+
+    /**
+     * Runs a startup step on a background thread, next to the other steps.
+     */
+    private static void runStartupStep(String step, Runnable work) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(StartupTrace.traced(step, work));
+    }
+
+    /**
+     * The main thread part of startup that doesn't have to be on the first frame.
+     */
+    private void afterFirstFrame() {
+        if (isFinishing()) {
+            return;
+        }
+        mFirstFrameDrawn = true;
+
+        if (mResumed) {
+            long step = StartupTrace.begin("startBluetooth");
+            startBluetooth();
+            StartupTrace.end("startBluetooth", step);
+        }
+
+        long step = StartupTrace.begin("setupManualWeightDialog");
+        setupManualWeightDialog();
+        StartupTrace.end("setupManualWeightDialog", step);
 
         if (!mWeightRecorder.isOfficeNameSet()) {
             Log.v(TAG, "No Office Name Set");
@@ -218,6 +302,13 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         }
     }
 
+    private void startAppUpdate(File updateFile) {
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(Uri.fromFile(updateFile), "application/vnd.android.package-archive");
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(intent);
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -227,7 +318,8 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mRemoteScaleReceiver);
+        mResumed = false;
+        ScaleSourceBus.get().unsubscribe(this);
         if (mBLEScanner != null) {
             mBLEScanner.onPause();
         }
@@ -235,22 +327,37 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
     @Override
     protected void onResume() {
-        // This could have changed via settings menu
-        checkIfBluetoothEnabled();
-
-        if (mBLEScanner != null) {
-            mBLEScanner.onResume();
+        mResumed = true;
+        // Bluetooth waits for the first frame, after that it could have changed via settings menu
+        if (mFirstFrameDrawn) {
+            startBluetooth();
         }
         super.onResume();
 
-        // This sets us up to listen for remote scale data
-        IntentFilter filter = new IntentFilter();
-        filter.addAction("com.divertsy.REMOTE_SCALE_WEIGHT");
-        mRemoteScaleReceiver = new RemoteScaleReceiver();
-        registerReceiver(mRemoteScaleReceiver, filter);
+        // This sets us up to get weights from every scale source
+        ScaleSourceBus.get().subscribe(this);
 
         // The view might change via settings, this should refresh it
+        long step = StartupTrace.begin("initView");
         initView();
+        StartupTrace.end("initView", step);
+    }
+
+    private void startBluetooth() {
+        checkIfBluetoothEnabled();
+
+        if (mBLEScanner != null) {
+            mBLEScanner.onResume();
+        }
+    }
+
+    @Override
+    public void onUserInteraction() {
+        super.onUserInteraction();
+        // Someone is at the bin, so look for scales and beacons quickly for a while
+        if (mBLEScanner != null) {
+            mBLEScanner.onActivity();
+        }
     }
 
     @Override
@@ -262,6 +369,7 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
     @Override
     protected void onDestroy() {
         mDialogDismissHandler.removeCallbacksAndMessages(null);
+        mAppUpdateWatcher.stop();
         super.onDestroy();
     }
 
@@ -288,7 +396,17 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
                 String email_body = "Divertsy data attachement below. Last update: " + mWeightRecorder.getLastRecordedWeight();
 
                 File csv = new File(Utils.getDivertsyFilePath(mWeightRecorder.getOffice()));
-                sharingIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(csv));
+                File beaconCsv = new File(Utils.getBeaconTelemetryFilePath(mWeightRecorder.getOffice()));
+                if (beaconCsv.exists()) {
+                    // Beacon battery and temperature history goes along with the weights
+                    sharingIntent.setAction(Intent.ACTION_SEND_MULTIPLE);
+                    ArrayList<Uri> files = new ArrayList<>();
+                    files.add(Uri.fromFile(csv));
+                    files.add(Uri.fromFile(beaconCsv));
+                    sharingIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, files);
+                } else {
+                    sharingIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(csv));
+                }
                 sharingIntent.putExtra(android.content.Intent.EXTRA_SUBJECT, subject_line);
                 sharingIntent.putExtra(android.content.Intent.EXTRA_TEXT, email_body);
                 startActivity(Intent.createChooser(sharingIntent, "Send CSV File"));
@@ -348,16 +466,24 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
             if (mWeightRecorder.useBluetoothBeacons() || mWeightRecorder.useBleScale()) {
                 mBLEScanner = new BLEScanner(this, REQUEST_ENABLE_BLUETOOTH, this);
+                mBLEScanner.setSources(mWeightRecorder.useBluetoothBeacons(),
+                        mWeightRecorder.useBleScale());
+                mBLEScanner.setDiagnostics(mWeightRecorder.useBleDiagnostics());
+                mBLEScanner.setScalePolicy(mWeightRecorder.getBleScalePolicy(),
+                        mWeightRecorder.getBleScaleAddress());
+                mBLEScanner.setUidLocationFile(mWeightRecorder.useUidLocations()
+                        ? Utils.getBeaconLocationsFilePath() : null);
+                mBLEScanner.setTelemetryFile(Utils.getBeaconTelemetryFilePath(mWeightRecorder.getOffice()));
             } else {
                 mBLEScanner = null;
+                BLEScanner.closeWeightScaleClient();
             }
         }
     }
 
     private void initView() {
         setTitleBar();
-        WasteStreams wasteStreams = new WasteStreams();
-        wasteStreams.loadWasteStreams(getApplicationContext());
+        WasteStreams wasteStreams = WasteStreams.get(getApplicationContext());
 
         // Only show the enabled streams or default if not set
         Set<String> enabledStreams = mWeightRecorder.getEnabledStreams();
@@ -373,34 +499,105 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
                 (LinearLayout) findViewById(R.id.button_row_3)
         };
 
-        // Remove all current buttons. This can happen after a settings change.
-        for (LinearLayout row : buttonRows) {
-            if (row.getChildCount() > 0) row.removeAllViews();
-        }
-
-        int current_row = 0;
-        for (final String stream : sortedStreams) {
-            Log.d(TAG, "Enabled Stream: " + stream);
-
-            AppCompatButton button = new AppCompatButton(this);
-            button.setText(wasteStreams.getDisplayNameFromValue(stream));
-            LinearLayout.LayoutParams lparams = new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.MATCH_PARENT, 1f);
-            lparams.setMargins(10, 10, 10, 10);
-            button.setLayoutParams(lparams);
-            button.setBackgroundColor(wasteStreams.getButtonColorFromValue(stream));
-            button.setTextColor(Color.WHITE);
-            button.setOnClickListener(new View.OnClickListener() {
-                                          @Override
-                                          public void onClick(View view) {
-                                              saveWeight(stream);
+        // Usually nothing changed since the last time, like coming back from sleep
+        if (!sortedStreams.equals(mShownStreams) || wasteStreams != mShownWasteStreams) {
+            updateStreamButtons(buttonRows, wasteStreams, sortedStreams);
+        }
+
+        Button mTare;
+        mTare = (Button) findViewById(R.id.button_zero);
+        if (mWeightRecorder.tareAfterAdd()) {
+            mTare.setBackgroundColor(Color.GRAY);
+            mTare.setText(R.string.btn_zero);
+            mTare.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    Log.d(TAG, "Call Zero Tare");
+                    ScaleMeasurement sm = mUsbScaleManager.getLatestMeasurement();
+                    if (sm != null) {
+                        mUsbScaleManager.setAddToScaleWeight(sm.getRawScaleWeight());
+                    } else {
+                        Log.e(TAG, "Null ScaleMeasurement on Tare");
+                    }
+                }
+            });
+        } else {
+            // Make the button transparent so it still takes up the space, but not in use.
+            mTare.setBackgroundColor(Color.TRANSPARENT);
+            mTare.setText("");
+            mTare.setOnClickListener(null);
+        }
+    }
+
+    /**
+     * Makes the button rows show sortedStreams, dealt across the rows in order. Buttons for
+     * streams that stay enabled are kept, and only moved if their place changed.
+     */
+    private void updateStreamButtons(LinearLayout[] buttonRows, WasteStreams wasteStreams,
+                                     List<String> sortedStreams) {
+        // Drop the buttons of streams that were turned off
+        Iterator<Map.Entry<String, AppCompatButton>> it = mStreamButtons.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AppCompatButton> entry = it.next();
+            if (!sortedStreams.contains(entry.getKey())) {
+                ((ViewGroup) entry.getValue().getParent()).removeView(entry.getValue());
+                it.remove();
+            }
+        }
+
+        // A new model can have other names (language) or colors (sync folder override)
+        boolean modelChanged = wasteStreams != mShownWasteStreams;
+        for (int i = 0; i < sortedStreams.size(); i++) {
+            final String stream = sortedStreams.get(i);
+            AppCompatButton button = mStreamButtons.get(stream);
+            if (button == null) {
+                Log.d(TAG, "Enabled Stream: " + stream);
+                button = new AppCompatButton(this);
+                button.setText(wasteStreams.getDisplayNameFromValue(stream));
+                LinearLayout.LayoutParams lparams = new LinearLayout.LayoutParams(0, ViewGroup.LayoutParams.MATCH_PARENT, 1f);
+                lparams.setMargins(10, 10, 10, 10);
+                button.setLayoutParams(lparams);
+                button.setBackgroundColor(wasteStreams.getButtonColorFromValue(stream));
+                button.setTextColor(Color.WHITE);
+                button.setOnClickListener(new View.OnClickListener() {
+                                              @Override
+                                              public void onClick(View view) {
+                                                  saveWeight(stream);
+                                              }
                                           }
-                                      }
-            );
-            buttonRows[current_row++ % buttonRows.length].addView(button);
+                );
+                mStreamButtons.put(stream, button);
+            } else if (modelChanged) {
+                button.setText(wasteStreams.getDisplayNameFromValue(stream));
+                button.setBackgroundColor(wasteStreams.getButtonColorFromValue(stream));
+            }
+
+            LinearLayout row = buttonRows[i % buttonRows.length];
+            int position = i / buttonRows.length;
+            if (row.getChildAt(position) != button) {
+                ViewGroup parent = (ViewGroup) button.getParent();
+                if (parent != null) {
+                    parent.removeView(button);
+                }
+                row.addView(button, Math.min(position, row.getChildCount()));
+            }
+        }
+
+        // Anything past the buttons each row should have isn't ours
+        for (int r = 0; r < buttonRows.length; r++) {
+            int count = (sortedStreams.size() + buttonRows.length - 1 - r) / buttonRows.length;
+            while (buttonRows[r].getChildCount() > count) {
+                buttonRows[r].removeViewAt(count);
+            }
         }
 
+        mShownStreams = sortedStreams;
+        mShownWasteStreams = wasteStreams;
+    }
 
-        // This sets up the manual weight input pop-up when the digits are tapped
+    // This sets up the manual weight input pop-up when the digits are tapped.
+    // It doesn't depend on any settings, so it's only built once.
+    private void setupManualWeightDialog() {
         TextView tvWeight = (TextView) findViewById(R.id.weight);
 
         LayoutInflater factory = LayoutInflater.from(this);
@@ -425,7 +622,7 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
                 try {
                     Double inputWeight = Double.parseDouble(input.getText().toString());
                     String inputUnits = manualUnitPicker.getSelectedItem().toString();
-                    setDisplayWeight(inputWeight, inputUnits, "Manual Entry", false);
+                    ScaleSourceBus.get().publish(ScaleSourceBus.SOURCE_MANUAL, inputWeight, inputUnits, "Manual Entry");
                     /*
                     // Update the on Screen Display
                     mWeight.setText(Double.toString(inputWeight));
@@ -440,7 +637,6 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
                     measurementBuilder.units(inputUnits);
                     mLatestScaleMeasurement = measurementBuilder.build();
                     */
-                    ZeroWeightAfterAdd = true;
 
 
                 } catch (Exception e) {
@@ -452,43 +648,17 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         });
 
 
-        final AlertDialog manualWeightDialog = builder.create();
+        mManualWeightDialog = builder.create();
 
         tvWeight.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 Log.d(TAG, "Weight View Tap!");
-                manualWeightDialog.show();
+                mManualWeightDialog.show();
             }
 
             ;
         });
-
-        Button mTare;
-        mTare = (Button) findViewById(R.id.button_zero);
-        if (mWeightRecorder.tareAfterAdd()) {
-            mTare.setBackgroundColor(Color.GRAY);
-            mTare.setText(R.string.btn_zero);
-            mTare.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    Log.d(TAG, "Call Zero Tare");
-                    ScaleMeasurement sm = mUsbScaleManager.getLatestMeasurement();
-                    if (sm != null) {
-                        mUsbScaleManager.setAddToScaleWeight(sm.getRawScaleWeight());
-                    } else {
-                        Log.e(TAG, "Null ScaleMeasurement on Tare");
-                    }
-                }
-            });
-        } else {
-            // Make the button transparent so it still takes up the space, but not in use.
-            mTare.setBackgroundColor(Color.TRANSPARENT);
-            mTare.setText("");
-            mTare.setOnClickListener(null);
-        }
-
-
     }
 
     private void setTitleBar() {
@@ -545,6 +715,11 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
                     mTimeout);
         }
 
+        // Something is on the scale, so a weigh-in is in progress
+        if (inputWeight != 0 && mBLEScanner != null) {
+            mBLEScanner.onActivity();
+        }
+
         if (inputWeight == 0) {
             mWeightUnit.setText("");
         } else {
@@ -633,11 +808,12 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
             mWeightRecorder.saveAsLastRecordedWeight(Double.toString(measurement.getScaleWeight()), weightType);
             setTitleBar();
 
-            // Send an Intent to start Syncing if this is enabled
-            SharedPreferences syncPreferences = getApplicationContext().getSharedPreferences(SyncToDriveService.PREFERENCES_NAME, Context.MODE_PRIVATE);
-            if (syncPreferences.getBoolean(SyncToDriveService.PREF_USE_GOOGLE_DRIVE, false)) {
-                startService(new Intent(this, SyncToDriveService.class));
-            }
+            // A manual entry has been used up, so let the scales back on
+            ScaleSourceBus.get().release(ScaleSourceBus.SOURCE_MANUAL);
+
+            // Hand the record to every enabled sync backend
+            SyncBackends.recordSaved(this, sOffice,
+                    measurement.toJsonRecord(sOffice, weightType, mFloor, mPlace));
 
             final AlertDialog dialog = new AlertDialog.Builder(this)
                     .setMessage(R.string.msg_weightsent)
@@ -677,9 +853,8 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
     @Override
     public void onMeasurement(final ScaleMeasurement measurement) {
-        Double weight = measurement.getScaleWeight();
-        setDisplayWeight(weight, measurement.getScaleUnit(), "USB SCALE");
-        mWeight.setText(Double.toString(weight));
+        ScaleSourceBus.get().publish(ScaleSourceBus.SOURCE_USB,
+                measurement.getScaleWeight(), measurement.getScaleUnit(), "USB SCALE");
 
         /*
         // If zero, hide the units since the USB data won't always show the correct setting
@@ -695,6 +870,13 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
 
     }
 
+    @Override
+    public void onScaleReading(ScaleSourceBus.ScaleReading reading) {
+        // Manual entries stay on screen until they're saved, scales time out if they go quiet
+        setDisplayWeight(reading.weight, reading.unit, reading.scaleName,
+                reading.source != ScaleSourceBus.SOURCE_MANUAL);
+    }
+
     public void showError(@NonNull String errorMessage) {
         new AlertDialog.Builder(this)
                 .setTitle(R.string.error)
@@ -704,19 +886,10 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
     }
 
     @Override
-    public void onClosestChanged(final Beacon closest) {
-        // Remove the last message if there was one, since we just updated to a new beacon
-        mHandler.removeMessages(0);
-
-        if (closest != null && closest.urlStatus != null && closest.urlStatus.getUrl() != null) {
-            Message msg = Message.obtain(mHandler, 0, closest);
-            // If we didn't have a saved floor or place and we just got one, set them immediately
-            // otherwise wait 4 seconds to make sure it's stabilized
-            if (mFloor == null || mPlace == null) {
-                mHandler.sendMessageAtFrontOfQueue(msg);
-            } else {
-                mHandler.sendMessageDelayed(msg, 4000);
-            }
+    public void onClosestChanged(final BeaconLocation closest) {
+        // BLEScanner smooths the signal and only reports stable changes, so use it right away
+        if (closest != null && closest.hasFloorAndPlace()) {
+            updateClosestBeacon(closest.url, closest.floor, closest.place);
         } else {
             mFloor = null;
             mPlace = null;
@@ -730,53 +903,4 @@ public class MainActivity extends AppCompatActivity implements UsbScaleManager.C
         mLocation.setText(url);
     }
 
-
-    // use this as an inner class like here or as a top-level class
-    public class RemoteScaleReceiver extends BroadcastReceiver {
-
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            try {
-                float fRemoteWeight = intent.getFloatExtra("floatScaleWeight", 0.0f);
-                String sRemoteUnit = intent.getStringExtra("stringScaleUnit");
-                String sDeviceAddress = intent.getStringExtra("stringScaleName");
-                if (sDeviceAddress == null) {
-                    sDeviceAddress = "Unknown";
-                }
-                // Assume KG as the default unit
-                if ((sRemoteUnit == null) || (sRemoteUnit.length() < 1)) {
-                    sRemoteUnit = "KG";
-                } else {
-                    sRemoteUnit = sRemoteUnit.toUpperCase();
-                }
-                Log.d(TAG, "RemoteScale Data Received: " + fRemoteWeight + " " + sRemoteUnit);
-
-                setDisplayWeight(Double.valueOf(Float.toString(fRemoteWeight)), sRemoteUnit, sDeviceAddress);
-
-                /*
-                // Update the on Screen Display
-                mWeight.setText(Float.toString(fRemoteWeight));
-                mWeightUnit.setText(sRemoteUnit);
-
-                // Save the data so we can record it if the user taps a waste stream button
-                ScaleMeasurement.Builder measurementBuilder = new ScaleMeasurement.Builder();
-                measurementBuilder.rawScaleWeight(fRemoteWeight);
-                // ScaleMeasurement expects a double, this fixes some precision issues
-                double dWeight = Double.valueOf(Float.toString(fRemoteWeight));
-                measurementBuilder.scaleWeight(dWeight);
-                measurementBuilder.units(sRemoteUnit);
-                mLatestScaleMeasurement = measurementBuilder.build();
-                */
-            } catch (Exception e) {
-                Log.e(TAG, "REMOTE DATA BROADCAST RECEIVER ERROR: " + e.getMessage());
-            }
-        }
-
-        // constructor
-        public RemoteScaleReceiver() {
-            Log.i(TAG, "Creating Broadcast Receiver");
-        }
-
-    }
-
 }
@@ -1,8 +1,12 @@
 package com.divertsy.hid;
 
 import android.app.Application;
+import android.content.Context;
 import android.provider.Settings;
 
+import com.divertsy.hid.utils.StartupTrace;
+import com.divertsy.hid.utils.WeightRecorder;
+
 /**
  *  ScaleApplication for getting self and the DeviceID
  */
@@ -12,8 +16,13 @@ public class ScaleApplication extends Application {
 
     @Override
     public void onCreate() {
+        StartupTrace.processStarted();
         super.onCreate();
         self = this;
+
+        // Getting the preferences starts reading them from disk on another thread, so they're
+        // usually loaded by the time MainActivity asks for a value
+        getSharedPreferences(WeightRecorder.PREFERENCES_NAME, Context.MODE_PRIVATE);
     }
 
     public static ScaleApplication get() {
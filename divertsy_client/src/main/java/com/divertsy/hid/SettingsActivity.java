@@ -22,6 +22,9 @@ import android.support.v7.app.ActionBar;
 import android.view.MenuItem;
 import android.util.Log;
 
+import com.divertsy.hid.sync.HttpIngestBackend;
+import com.divertsy.hid.sync.LoopbackIngestServer;
+import com.divertsy.hid.sync.SyncOutbox;
 import com.divertsy.hid.utils.WeightRecorder;
 
 import java.util.HashSet;
@@ -185,6 +188,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
                 }
             });
 
+            bindPreferenceSummaryToValue(findPreference(WeightRecorder.PREF_BLE_SCALE_ADDRESS));
+
             findPreference("device_id").setSummary(ScaleApplication.get().getDeviceId());
         }
 
@@ -266,8 +271,7 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
         public void loadWasteStreamSettings(){
             final MultiSelectListPreference streamPrefs = (MultiSelectListPreference) findPreference(WeightRecorder.PREF_WASTE_STREAMS);
-            WasteStreams wasteStreams = new WasteStreams();
-            wasteStreams.loadWasteStreams(getActivity().getApplicationContext());
+            WasteStreams wasteStreams = WasteStreams.get(getActivity().getApplicationContext());
 
             streamPrefs.setDefaultValue(wasteStreams.getDefaultStreamValues());
             streamPrefs.setEntries(wasteStreams.getAllStreamNames());
@@ -305,6 +309,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public static class SyncPreferenceFragment extends PreferenceFragment {
+        private static final String PREF_SYNC_QUEUE = "sync_queue";
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -315,6 +321,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             addPreferencesFromResource(R.xml.pref_sync);
             setHasOptionsMenu(true);
             SetDriveStringDetails();
+            bindPreferenceSummaryToValue(findPreference(HttpIngestBackend.PREF_INGEST_URL));
+            bindPreferenceSummaryToValue(findPreference(LoopbackIngestServer.PREF_FAIL_EVERY));
 
             Preference disconButton = findPreference("clear_drive_data");
             if(disconButton != null){
@@ -348,6 +356,16 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             if (prefMgr.getSharedPreferences().getString(SyncToDriveService.PREF_DRIVE_ID, "").length() < 1){
                 findPreference("clear_drive_data").setEnabled(false);
             }
+
+            // Sync queue depth and lag from the outbox
+            SyncOutbox outbox = SyncOutbox.get(getActivity());
+            int depth = outbox.getQueueDepth();
+            if (depth == 0) {
+                findPreference(PREF_SYNC_QUEUE).setSummary(R.string.pref_sync_queue_empty);
+            } else {
+                findPreference(PREF_SYNC_QUEUE).setSummary(getString(R.string.pref_sync_queue_summary,
+                        depth, outbox.getPendingBytes() / 1024, outbox.getSyncLagMillis() / 60000));
+            }
         }
 
         public String getCurrentOfficeSaveIDPref(){
@@ -10,6 +10,8 @@ import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.events.CompletionEvent;
 import com.google.android.gms.drive.events.DriveEventService;
 
+import java.util.List;
+
 /**
  * SyncEventService is used to respond to Events from the Google Drive API.
  * At this time, Divertsy only uses it to capture the ResourceId of the
@@ -29,6 +31,15 @@ public class SyncEventService extends DriveEventService {
             String driveResourceID = driveId.getResourceId();
             SyncToDriveService sd = new SyncToDriveService();
 
+            // Uploads are tagged with their office, since one sync pass can cover several
+            String office;
+            List<String> tags = event.getTrackingTags();
+            if (tags != null && !tags.isEmpty()) {
+                office = tags.get(0);
+            } else {
+                office = sd.getCurrentOffice(getApplicationContext());
+            }
+
             switch (event.getStatus()) {
                 case CompletionEvent.STATUS_CONFLICT:
                     Log.e(TAG, "STATUS_CONFLICT");
@@ -38,10 +49,12 @@ public class SyncEventService extends DriveEventService {
                     Log.e(TAG, "STATUS_FAILURE");
                     String message = "Divertsy Sync Failed. You may need to reconnect Google Drive in Sync Settings.";
                     Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+                    sd.RecordSyncFailure(office, getApplicationContext());
                     event.dismiss();
                     break;
                 case CompletionEvent.STATUS_SUCCESS:
-                    sd.SaveDriveID(driveResourceID, getApplicationContext());
+                    sd.SaveDriveID(driveResourceID, office, getApplicationContext());
+                    sd.ConfirmUploadOffset(office, getApplicationContext());
                     event.dismiss();
                     break;
             }
@@ -7,16 +7,25 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.app.Service;
 import android.app.PendingIntent;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.divertsy.hid.sync.ChunkedUpload;
+import com.divertsy.hid.sync.DriveSyncBackend;
+import com.divertsy.hid.sync.RetryScheduler;
+import com.divertsy.hid.sync.SyncExecutor;
+import com.divertsy.hid.sync.SyncOutbox;
 import com.divertsy.hid.utils.Utils;
 import com.divertsy.hid.utils.WeightRecorder;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveApi;
 import com.google.android.gms.drive.DriveContents;
@@ -28,16 +37,15 @@ import com.google.android.gms.drive.Metadata;
 import com.google.android.gms.drive.MetadataChangeSet;
 import com.google.android.gms.drive.metadata.CustomPropertyKey;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.android.gms.common.ConnectionResult.SERVICE_MISSING;
 import static com.google.android.gms.common.ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED;
@@ -57,15 +65,20 @@ public class SyncToDriveService extends Service implements
     public static final String PREF_USE_GOOGLE_DRIVE = "use_google_drive";
     public static final String PREF_DRIVE_ID = "drive_id";
     public static final String PREF_DRIVE_ID_LAST_SAVE_TIME = "last_save_time";
-    String sPreviousDriveID;
+    public static final String PREF_UPLOAD_OFFSET = "upload_offset";
+    public static final String PREF_UPLOAD_PENDING_OFFSET = "upload_pending_offset";
 
     protected static final int REQUEST_CODE_RESOLUTION = 1;
+    private static final long DRIVE_TIMEOUT_SECONDS = 60;
+    private static final String SYNC_ALL_OFFICES = "all_offices";
 
     protected GoogleApiClient mGoogleApiClient;
     protected boolean shouldClearAccount = false;
 
     SharedPreferences mSharedPreferences;
     protected int mStartID;
+    private SyncExecutor mSyncExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -88,7 +101,7 @@ public class SyncToDriveService extends Service implements
             // Only sync if the use Google Drive setting is true
             if (mSharedPreferences.getBoolean(PREF_USE_GOOGLE_DRIVE, false)) {
                 Toast.makeText(this, "Starting Google Drive Sync", Toast.LENGTH_SHORT).show();
-                FindOrCreateDriveFile();
+                SyncAllOffices();
             }
         }
 
@@ -99,6 +112,7 @@ public class SyncToDriveService extends Service implements
     public void onCreate(){
         super.onCreate();
         mSharedPreferences = getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mSyncExecutor = new SyncExecutor();
         connectClient();
     }
 
@@ -149,10 +163,12 @@ public class SyncToDriveService extends Service implements
 
     /**
      * Called when activity gets invisible. Connection to Drive service needs to
-     * be disconnected as soon as an activity is invisible.
+     * be disconnected as soon as an activity is invisible. Any sync still queued or
+     * running is cancelled, and whatever it didn't send stays in the outbox.
      */
     @Override
     public void onDestroy() {
+        mSyncExecutor.shutdown();
         if (mGoogleApiClient != null) {
             mGoogleApiClient.disconnect();
         }
@@ -196,6 +212,11 @@ public class SyncToDriveService extends Service implements
                     .putExtra("resolution", pI).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
         } else {
             Log.e(TAG, "Pending Intent resolution was Null");
+            if (result.getErrorCode() != SERVICE_MISSING
+                    && result.getErrorCode() != SERVICE_VERSION_UPDATE_REQUIRED) {
+                // Most likely no network. Nothing the user needs to do, so try again later.
+                RecordSyncFailure(getCurrentOffice(), getApplicationContext());
+            }
         }
 
         // If we don't stop this service, we tend to have an invalid API client
@@ -204,9 +225,15 @@ public class SyncToDriveService extends Service implements
     }
 
 
-    public void showMessage(String message) {
-        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+    public void showMessage(final String message) {
         Log.d(TAG,"SHOW MESSAGE: " + message);
+        // Sync work calls this from background threads, Toasts need the main thread
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(SyncToDriveService.this, message, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
 
@@ -214,156 +241,203 @@ public class SyncToDriveService extends Service implements
         return mGoogleApiClient;
     }
 
-    void FindOrCreateDriveFile(){
-        // Check if we already have a driveID file
-        Context context = getApplicationContext();
-        SharedPreferences mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
-        sPreviousDriveID = mSharedPreferences.getString(PREF_DRIVE_ID,"");
-        if (sPreviousDriveID.length() > 0){
-            Log.v(TAG, "Using saved drive ID: " + sPreviousDriveID);
-            Drive.DriveApi.fetchDriveId(getGoogleApiClient(),sPreviousDriveID)
-                    .setResultCallback(driveFetchIDCallback);
-        } else {
-            // create new contents resource
-            Log.v(TAG, "Attempting to create new drive file");
-            Drive.DriveApi.newDriveContents(getGoogleApiClient())
-                    .setResultCallback(driveContentsCallback);
+    // Queues a sync pass over every office log. If one is already running, it runs once more afterwards.
+    void SyncAllOffices(){
+        boolean queued = mSyncExecutor.submit(SYNC_ALL_OFFICES, new Runnable() {
+            @Override
+            public void run() {
+                SyncChangedOffices();
+            }
+        });
+        if (!queued) {
+            RecordSyncFailure(getCurrentOffice(), getApplicationContext());
         }
     }
 
     /**
-     * WriteDriveFile will pull in the CSV file for the current office and
-     * write its data to the drive file, which is saved locally when the call back
-     * is received.
-     *
-     * @param driveContents where the CSV data will go in Google Drive
+     * SyncChangedOffices looks at every office log on the device and uploads the ones
+     * which changed since their last confirmed upload, or were never uploaded, all
+     * over the one connected GoogleApiClient.
      */
-    void WriteDriveFile(final DriveContents driveContents){
-        new Thread() {
-            @Override
-            public void run() {
-                // write content to DriveContents
+    void SyncChangedOffices(){
+        GoogleApiClient client = getGoogleApiClient();
+        if (!client.isConnected()) {
+            ConnectionResult result = client.blockingConnect(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!result.isSuccess()) {
+                // onConnectionFailed takes care of telling the user and scheduling a retry
+                Log.w(TAG, "Could not connect for sync: " + result.toString());
+                return;
+            }
+        }
 
-                try {
-                    Log.v(TAG, "Starting Write to Drive File");
-                    OutputStream outputStream = driveContents.getOutputStream();
-                    Writer writer = new OutputStreamWriter(outputStream);
-
-                    File csv = new File(Utils.getDivertsyFilePath(getCurrentOffice()));
-                    FileInputStream instream = new FileInputStream(csv);
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(instream));
-                    String line = reader.readLine();
-                    while(line != null){
-                        writer.write(line + System.getProperty("line.separator"));
-                        line = reader.readLine();
-                    }
-                    writer.close();
-                    Log.v(TAG, "Drive File Closed");
-                } catch (IOException e) {
-                    Log.v(TAG, "Error writing to drive file");
-                    Log.e(TAG, e.getMessage());
-                }
+        SyncOutbox outbox = SyncOutbox.get(getApplicationContext());
+        for (String office : Utils.getDivertsyOffices()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            long logLength = new File(Utils.getDivertsyFilePath(office)).length();
+            long confirmed = mSharedPreferences.getLong(PREF_UPLOAD_OFFSET + ":" + office, 0);
+            if (logLength == confirmed && getDriveID(office).length() > 0) {
+                Log.v(TAG, "No changes to sync for " + office);
+                continue;
+            }
+            outbox.extend(DriveSyncBackend.outboxKey(office), confirmed, logLength);
+            SyncOfficeFile(office);
+        }
+    }
 
-                // Check if we're writing a brand new file or updating an old one.
-                if (sPreviousDriveID.length() > 0 ) {
-                    driveContents.commit(getGoogleApiClient(), null,
-                            new ExecutionOptions.Builder()
-                                    .setNotifyOnCompletion(true)
-                                    .build()
-                    );
-                } else {
+    // The saved Drive file for an office. Older installs only kept one for the current office.
+    String getDriveID(String office){
+        String driveID = mSharedPreferences.getString(PREF_DRIVE_ID + ":" + office, "");
+        if (driveID.length() == 0 && office.equals(getCurrentOffice())) {
+            driveID = mSharedPreferences.getString(PREF_DRIVE_ID, "");
+        }
+        return driveID;
+    }
 
-                    // New file, so we'll set the file name and properties
-                    String driveFileName = "DivertsyData-" + getCurrentOffice() + ".csv";
-                    CustomPropertyKey officePropertyKey = new CustomPropertyKey("DivertsyOffice", CustomPropertyKey.PRIVATE);
-
-                    MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
-                            .setTitle(driveFileName)
-                            .setMimeType("text/csv")
-                            .setDescription("Divertsy Waste Stream Data File")
-                            .setCustomProperty(officePropertyKey,getCurrentOffice())
-                            .setStarred(false).build();
-
-                    Drive.DriveApi.getRootFolder(getGoogleApiClient())
-                            .createFile(getGoogleApiClient(), changeSet, driveContents,
-                                    new ExecutionOptions.Builder()
-                                            .setNotifyOnCompletion(true)
-                                            .build()
-                            )
-                            .setResultCallback(fileCallback);
+    /**
+     * SyncOfficeFile finds the office's Drive file, or makes a new one, writes the CSV
+     * data to it and commits. It runs on the sync executor and waits on each Drive call
+     * in turn, so only one upload per office is ever in progress.
+     */
+    void SyncOfficeFile(String office){
+        // Check if we already have a driveID file
+        String driveID = getDriveID(office);
+        DriveContents driveContents = null;
+
+        if (driveID.length() > 0){
+            Log.v(TAG, "Using saved drive ID: " + driveID);
+            DriveApi.DriveIdResult idResult = Drive.DriveApi.fetchDriveId(getGoogleApiClient(), driveID)
+                    .await(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!idResult.getStatus().isSuccess()) {
+                ResetDriveFile(office);
+                driveID = "";
+            } else {
+                // Opens a file that was previously created so we can write data to it
+                DriveApi.DriveContentsResult contentsResult = idResult.getDriveId().asDriveFile()
+                        .open(getGoogleApiClient(), DriveFile.MODE_READ_WRITE, null)
+                        .await(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (!contentsResult.getStatus().isSuccess()) {
+                    showMessage("Error while trying to get previous Drive File");
+                    RecordSyncFailure(office, getApplicationContext());
+                    return;
                 }
+                driveContents = contentsResult.getDriveContents();
+            }
+        }
 
+        if (driveContents == null) {
+            // create new contents resource
+            Log.v(TAG, "Attempting to create new drive file");
+            DriveApi.DriveContentsResult contentsResult = Drive.DriveApi.newDriveContents(getGoogleApiClient())
+                    .await(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!contentsResult.getStatus().isSuccess()) {
+                showMessage("Error while trying to create new file contents");
+                RecordSyncFailure(office, getApplicationContext());
+                return;
             }
-        }.start();
-    }
+            driveContents = contentsResult.getDriveContents();
+        }
 
+        WriteDriveFile(driveContents, office);
+
+        if (Thread.currentThread().isInterrupted()) {
+            Log.i(TAG, "Sync cancelled, discarding Drive changes for " + office);
+            driveContents.discard(getGoogleApiClient());
+            return;
+        }
+
+        // Check if we're writing a brand new file or updating an old one.
+        if (driveID.length() > 0 ) {
+            Status status = driveContents.commit(getGoogleApiClient(), null,
+                    new ExecutionOptions.Builder()
+                            .setNotifyOnCompletion(true)
+                            .setTrackingTag(office)
+                            .build()
+            ).await(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!status.isSuccess()) {
+                showMessage("Error while trying to save the Drive File");
+                RecordSyncFailure(office, getApplicationContext());
+            }
+        } else {
 
-    // Used to clear our old drive ID file name, then try to save again to a new file
-    private void ResetDriveFile(){
-        Log.e(TAG, "Resetting saved Drive file ID. This may make a new file in Drive.");
-        SaveDriveID("", getApplicationContext());
-        sPreviousDriveID = "";
-        FindOrCreateDriveFile();
+            // New file, so we'll set the file name and properties
+            String driveFileName = "DivertsyData-" + office + ".csv";
+            CustomPropertyKey officePropertyKey = new CustomPropertyKey("DivertsyOffice", CustomPropertyKey.PRIVATE);
+
+            MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
+                    .setTitle(driveFileName)
+                    .setMimeType("text/csv")
+                    .setDescription("Divertsy Waste Stream Data File")
+                    .setCustomProperty(officePropertyKey, office)
+                    .setStarred(false).build();
+
+            // Called after data is written to the drive file
+            DriveFolder.DriveFileResult result = Drive.DriveApi.getRootFolder(getGoogleApiClient())
+                    .createFile(getGoogleApiClient(), changeSet, driveContents,
+                            new ExecutionOptions.Builder()
+                                    .setNotifyOnCompletion(true)
+                                    .setTrackingTag(office)
+                                    .build()
+                    ).await(DRIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!result.getStatus().isSuccess()) {
+                showMessage("Error while trying to create the file");
+                RecordSyncFailure(office, getApplicationContext());
+                return;
+            }
+            showMessage("Local Save to Google Drive");
+        }
     }
 
-    // Opens a file that was previously created and then writes data to it
-    private void OpenDriveFile(final DriveFile file){
-        new Thread() {
-            @Override
-            public void run() {
-                DriveApi.DriveContentsResult driveContentsResult =
-                        file.open(getGoogleApiClient(), DriveFile.MODE_WRITE_ONLY, null).await();
-                if (!driveContentsResult.getStatus().isSuccess()) {
-                    showMessage("Error while trying to get previous Drive File");
-                    return;
+    /**
+     * WriteDriveFile will pull in the CSV file for the office and write its data
+     * to the drive file, which is saved locally when it gets committed. Files opened
+     * for read/write that already hold everything up to the last confirmed upload
+     * only get the bytes appended since then.
+     *
+     * @param driveContents where the CSV data will go in Google Drive
+     * @param office the office whose CSV file gets uploaded
+     */
+    void WriteDriveFile(DriveContents driveContents, String office){
+        ChunkedUpload upload = new ChunkedUpload();
+
+        try {
+            Log.v(TAG, "Starting Write to Drive File");
+            File csv = new File(Utils.getDivertsyFilePath(office));
+            FileInputStream instream = new FileInputStream(csv);
+            try {
+                FileChannel source = instream.getChannel();
+                if (driveContents.getMode() == DriveFile.MODE_READ_WRITE) {
+                    ParcelFileDescriptor pfd = driveContents.getParcelFileDescriptor();
+                    long offset = getResumeOffset(office, pfd.getStatSize(), source.size());
+                    FileOutputStream outstream = new FileOutputStream(pfd.getFileDescriptor());
+                    outstream.getChannel().truncate(offset);
+                    outstream.getChannel().position(offset);
+                    Log.v(TAG, "Resuming Drive File upload at byte " + offset);
+                    upload.copy(source, offset, outstream);
+                } else {
+                    OutputStream outputStream = driveContents.getOutputStream();
+                    upload.copy(source, 0, outputStream);
+                    outputStream.close();
                 }
-                DriveContents driveContents = driveContentsResult.getDriveContents();
-                WriteDriveFile(driveContents);
+            } finally {
+                instream.close();
             }
-        }.start();
+            Log.v(TAG, "Drive File Closed");
+        } catch (IOException e) {
+            Log.v(TAG, "Error writing to drive file");
+            Log.e(TAG, e.getMessage());
+        }
+        SavePendingOffset(office, upload.getPosition(), getApplicationContext());
     }
 
 
-    final private ResultCallback<DriveApi.DriveIdResult> driveFetchIDCallback = new
-            ResultCallback<DriveApi.DriveIdResult>() {
-                @Override
-                public void onResult(final DriveApi.DriveIdResult result) {
-                    if (!result.getStatus().isSuccess()) {
-                        ResetDriveFile();
-                        return;
-                    }
-                    OpenDriveFile(result.getDriveId().asDriveFile());
-                }
-            };
-
-    // Creates a new Drive file then writes data to it
-    final private ResultCallback<DriveApi.DriveContentsResult> driveContentsCallback = new
-            ResultCallback<DriveApi.DriveContentsResult>() {
-                @Override
-                public void onResult(DriveApi.DriveContentsResult result) {
-                    if (!result.getStatus().isSuccess()) {
-                        showMessage("Error while trying to create new file contents");
-                        return;
-                    }
-                    Log.v(TAG, "driveContentsCallback got valid result");
-                    final DriveContents driveContents = result.getDriveContents();
-                    WriteDriveFile(driveContents);
-                }
-            };
+    // Used to clear our old drive ID file name, so the next save makes a new file
+    private void ResetDriveFile(String office){
+        Log.e(TAG, "Resetting saved Drive file ID for " + office + ". This may make a new file in Drive.");
+        SaveDriveID("", office, getApplicationContext());
+    }
 
-    // Called after data is written to the drive file
-    final ResultCallback<DriveFolder.DriveFileResult> fileCallback = new
-            ResultCallback<DriveFolder.DriveFileResult>() {
-                @Override
-                public void onResult(DriveFolder.DriveFileResult result) {
-                    if (!result.getStatus().isSuccess()) {
-                        showMessage("Error while trying to create the file");
-                        return;
-                    }
-                    String sDriveID = result.getDriveFile().getDriveId().encodeToString();
-                    showMessage("Local Save to Google Drive");
-                }
-            };
 
     // After we get an Event from the SyncEvent Service, look up the meta data and store the office ID
     ResultCallback<DriveResource.MetadataResult> metadataRetrievedCallback = new
@@ -382,17 +456,22 @@ public class SyncToDriveService extends Service implements
 
 
     // Save the ID and time of the Drive file so that we can write to the same one next time.
-    final public void SaveDriveID(String driveID, Context context){
-        Log.v(TAG, "Saving Drive ID: " + driveID);
+    final public void SaveDriveID(String driveID, String office, Context context){
+        Log.v(TAG, "Saving Drive ID for " + office + ": " + driveID);
 
         SharedPreferences mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        // Save with Office Name
         mSharedPreferences.edit()
-                .putString(PREF_DRIVE_ID, driveID)
+                .putString(PREF_DRIVE_ID + ":" + office, driveID)
                 .apply();
 
-        // Save with Office Name
+        // The settings screen shows the unsuffixed ID and time, which belong to the current office
+        if (!office.equals(getCurrentOffice(context))) {
+            return;
+        }
         mSharedPreferences.edit()
-                .putString(PREF_DRIVE_ID + ":" + getCurrentOffice(context), driveID)
+                .putString(PREF_DRIVE_ID, driveID)
                 .apply();
 
         SimpleDateFormat s = new SimpleDateFormat("E MMM dd, yyyy HH:mm:ss z");
@@ -408,4 +487,42 @@ public class SyncToDriveService extends Service implements
                 .apply();
     }
 
+    // Where to continue writing an existing Drive file. Only resume if the Drive copy is exactly
+    // as long as our last confirmed upload, otherwise rewrite the whole file.
+    long getResumeOffset(String office, long remoteSize, long localSize){
+        long confirmed = mSharedPreferences.getLong(PREF_UPLOAD_OFFSET + ":" + office, 0);
+        if (confirmed > 0 && confirmed == remoteSize && confirmed <= localSize) {
+            return confirmed;
+        }
+        return 0;
+    }
+
+    // Remember how much of the log went into the Drive file we're about to commit.
+    final public void SavePendingOffset(String office, long offset, Context context){
+        SharedPreferences mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mSharedPreferences.edit()
+                .putLong(PREF_UPLOAD_PENDING_OFFSET + ":" + office, offset)
+                .apply();
+    }
+
+    // Drive accepted the last commit, so the pending offset is now where the next upload resumes.
+    final public void ConfirmUploadOffset(String office, Context context){
+        SharedPreferences mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        long offset = mSharedPreferences.getLong(PREF_UPLOAD_PENDING_OFFSET + ":" + office, 0);
+        Log.v(TAG, "Confirmed upload offset for " + office + ": " + offset);
+        mSharedPreferences.edit()
+                .putLong(PREF_UPLOAD_OFFSET + ":" + office, offset)
+                .apply();
+        SyncOutbox.get(context).advance(DriveSyncBackend.outboxKey(office), offset);
+    }
+
+    // The upload for the office failed, so keep it in the outbox and retry with backoff.
+    final public void RecordSyncFailure(String office, Context context){
+        String key = DriveSyncBackend.outboxKey(office);
+        int attempts = SyncOutbox.get(context).recordFailure(key);
+        if (attempts > 0) {
+            RetryScheduler.schedule(context, attempts);
+        }
+    }
+
 }
@@ -6,6 +6,7 @@ import android.graphics.Color;
 import android.util.Log;
 
 
+import com.divertsy.hid.utils.Utils;
 import com.divertsy.hid.utils.WeightRecorder;
 
 import org.json.JSONArray;
@@ -13,133 +14,258 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
- *  SettingsActivity handles parsing the waste_streams.json file for button information
- *  and returning that data to the main and settings activity.
+ *  WasteStreams provides the waste stream button information to the main and settings activity.
+ *
+ *  The streams normally come from WasteStreamDefinitions, which the build generates from
+ *  res/raw/waste_streams.json, so there's no JSON to parse. A waste_streams.json in the sync
+ *  folder overrides them once loadOverride() has read it in the background. If it can't be
+ *  parsed the generated streams stay in use.
+ *
+ *  One WasteStreams is built per button language and kept for the life of the process. It never
+ *  changes after it's built, with a hash index from logged value to stream and the button colors
+ *  already parsed.
  */
 public class WasteStreams {
 
     private static final String TAG = "DIVERTSY";
-    private List<String> StreamNames;
-    private List<String> StreamValues;
-    private List<String> DefaultStreamValues;
-    private List<String> ButtonColors;
-    private String LanguageSetting;
+
+    private static final int DEFAULT_BUTTON_COLOR = Color.parseColor("#FF555555");
 
     public static final String JSON_DISPLAY_NAME = "display_name";
 
-    public void loadWasteStreams(Context context){
-        StringBuilder json = new StringBuilder();
-        StreamNames = new ArrayList<String>();
-        StreamValues = new ArrayList<String>();
-        ButtonColors = new ArrayList<String>();
-        DefaultStreamValues = new ArrayList<String>();
-        String displayNameField = JSON_DISPLAY_NAME;
+    // One per language setting, "" being the default language
+    private static final Map<String, WasteStreams> sByLanguage = new HashMap<>();
+
+    // The parsed override from the sync folder, if loadOverride() found one. Guarded by
+    // sByLanguage.
+    private static JSONArray sOverride;
 
+    private final String[] mStreamNames;
+    private final String[] mStreamValues;
+    private final int[] mButtonColors;
+    private final List<String> mDefaultStreamValues;
+    private final Map<String, Integer> mIndex;
+
+    /**
+     * @return the streams for the current language setting. Also saves the default streams
+     *         as the enabled ones if none are set yet.
+     */
+    public static WasteStreams get(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(WeightRecorder.PREFERENCES_NAME, Context.MODE_PRIVATE);
-        LanguageSetting = prefs.getString(WeightRecorder.PREF_LANGUAGE, "");
-        if (LanguageSetting.length() > 0){
-            displayNameField = JSON_DISPLAY_NAME + "_" + LanguageSetting;
+        String language = prefs.getString(WeightRecorder.PREF_LANGUAGE, "");
+
+        WasteStreams streams;
+        synchronized (sByLanguage) {
+            streams = sByLanguage.get(language);
+            if (streams == null) {
+                streams = load(language, sOverride);
+                sByLanguage.put(language, streams);
+            }
         }
 
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    context.getResources().openRawResource(R.raw.waste_streams)));
-            String line;
-            while((line = reader.readLine()) != null) {
-                json.append(line);
+        // If there are no saved waste streams, set the value to the default streams. Same if
+        // none of them are in these streams, like the built in defaults saved on the first run
+        // before a sync folder override with other logged names was read.
+        Set<String> savedStreams = prefs.getStringSet(WeightRecorder.PREF_WASTE_STREAMS, null);
+        if ((savedStreams == null) || streams.getSortedStreams(savedStreams).isEmpty()){
+            prefs.edit().putStringSet(WeightRecorder.PREF_WASTE_STREAMS,streams.getDefaultStreamValuesSet()).apply();
+        }
+        return streams;
+    }
+
+    /**
+     * Looks for a waste_streams.json in the sync folder and reads it in. This reads external
+     * storage, so call it off the main thread. A file that can't be parsed is ignored, and the
+     * built in streams are used instead.
+     *
+     * @return true if get() can return different streams now, so the buttons should be rebuilt
+     */
+    public static boolean loadOverride() {
+        File file = new File(Utils.getWasteStreamsOverridePath());
+        JSONArray json = null;
+        if (file.isFile()) {
+            Log.i(TAG, "Loading waste streams from " + file);
+            try {
+                json = (JSONArray) new JSONTokener(readFile(file)).nextValue();
+            } catch (IOException | JSONException | ClassCastException e) {
+                Log.e(TAG, "Can't read " + file + ", using the built in waste streams: " + e.getMessage());
+            }
+        }
+
+        synchronized (sByLanguage) {
+            if (json == null && sOverride == null) {
+                return false;
+            }
+            sOverride = json;
+            sByLanguage.clear();
+        }
+        return true;
+    }
+
+    private static WasteStreams load(String language, JSONArray override) {
+        if (override != null) {
+            WasteStreams streams = loadJson(override, language);
+            if (streams != null) {
+                return streams;
             }
-            JSONArray waste_streams = (JSONArray) new JSONTokener(json.toString()).nextValue();
+        }
 
+        int column = Arrays.asList(WasteStreamDefinitions.LANGUAGES).indexOf(language);
+        String[] names = WasteStreamDefinitions.DISPLAY_NAMES[column < 0 ? 0 : column];
+        List<String> defaults = new ArrayList<>();
+        for (int i = 0; i < WasteStreamDefinitions.IS_DEFAULT.length; i++) {
+            if (WasteStreamDefinitions.IS_DEFAULT[i]) {
+                defaults.add(WasteStreamDefinitions.LOGGED_DATA_NAMES[i]);
+            }
+        }
+        return new WasteStreams(names, WasteStreamDefinitions.LOGGED_DATA_NAMES,
+                WasteStreamDefinitions.BUTTON_COLORS, defaults);
+    }
 
+    /**
+     * Builds the streams from JSON in the same format as res/raw/waste_streams.json.
+     *
+     * @return null if a stream is missing a field or there are no streams
+     */
+    private static WasteStreams loadJson(JSONArray waste_streams, String language) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<String> colors = new ArrayList<>();
+        List<String> defaults = new ArrayList<>();
+        String displayNameField = JSON_DISPLAY_NAME;
+        if (language.length() > 0){
+            displayNameField = JSON_DISPLAY_NAME + "_" + language;
+        }
+
+        try {
             for (int i = 0; i < waste_streams.length(); i++) {
                 JSONObject waste_stream = waste_streams.getJSONObject(i);
 
                 // Check if this tag has the proper language, otherwise get the default
-                String streamName;
-                try {
-                    streamName = waste_stream.getString(displayNameField);
-                } catch (JSONException e) {
+                String streamName = waste_stream.optString(displayNameField, null);
+                if (streamName == null) {
                     streamName = waste_stream.getString(JSON_DISPLAY_NAME);
                 }
 
                 Log.d(TAG, "Loading Stream: " + streamName);
 
-
-                StreamNames.add(streamName);
-
-                StreamValues.add(waste_stream.getString("logged_data_name"));
-                ButtonColors.add(waste_stream.getString("button_color"));
+                names.add(streamName);
+                values.add(waste_stream.getString("logged_data_name"));
+                colors.add(waste_stream.getString("button_color"));
                 if(waste_stream.getBoolean("is_default")){
-                    DefaultStreamValues.add(waste_stream.getString("logged_data_name"));
+                    defaults.add(waste_stream.getString("logged_data_name"));
                 }
             }
+        } catch (JSONException e){
+            Log.e(TAG, "Bad waste stream override, using the built in streams: " + e.getMessage());
+            return null;
+        }
+        if (names.isEmpty()) {
+            Log.e(TAG, "No streams in the waste stream override, using the built in streams");
+            return null;
+        }
 
-        } catch (Exception e){
-            Log.e(TAG, e.getLocalizedMessage());
+        int[] buttonColors = new int[colors.size()];
+        for (int i = 0; i < buttonColors.length; i++) {
+            buttonColors[i] = parseColor(colors.get(i));
         }
+        return new WasteStreams(names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]), buttonColors, defaults);
+    }
 
-        // If there are no saved waste streams, set the value to the default streams
-        Set<String> savedStreams = prefs.getStringSet(WeightRecorder.PREF_WASTE_STREAMS, null);
-        if ((savedStreams == null) || (savedStreams.size() == 0)){
-            prefs.edit().putStringSet(WeightRecorder.PREF_WASTE_STREAMS,getDefaultStreamValuesSet()).apply();
+    private static String readFile(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder json = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                json.append(buffer, 0, read);
+            }
+            return json.toString();
+        } finally {
+            reader.close();
         }
+    }
 
+    // Keeps the arrays as they are, callers must not change them afterwards
+    private WasteStreams(String[] names, String[] values, int[] buttonColors, List<String> defaults) {
+        mStreamNames = names;
+        mStreamValues = values;
+        mButtonColors = buttonColors;
+        mIndex = new HashMap<>();
+        for (int i = 0; i < mStreamValues.length; i++) {
+            // The first stream with a value wins, like a search through the list would
+            if (!mIndex.containsKey(mStreamValues[i])) {
+                mIndex.put(mStreamValues[i], i);
+            }
+        }
+        mDefaultStreamValues = Collections.unmodifiableList(new ArrayList<>(defaults));
+    }
+
+    private static int parseColor(String input_color) {
+        try{
+            return Color.parseColor(input_color);
+        } catch(Exception e) {
+            Log.e(TAG, "button_color decoded failed: " + input_color);
+            return DEFAULT_BUTTON_COLOR;
+        }
     }
 
     public CharSequence[] getAllStreamNames(){
-        return StreamNames.toArray(new CharSequence[StreamNames.size()]);
+        return mStreamNames.clone();
     }
 
     public CharSequence[] getAllStreamValues(){
-        return StreamValues.toArray(new CharSequence[StreamValues.size()]);
+        return mStreamValues.clone();
     }
 
     public CharSequence[] getDefaultStreamValues(){
-        return DefaultStreamValues.toArray(new CharSequence[DefaultStreamValues.size()]);
+        return mDefaultStreamValues.toArray(new CharSequence[mDefaultStreamValues.size()]);
     }
 
     public Set<String> getDefaultStreamValuesSet(){
-        return new HashSet<String>(DefaultStreamValues);
+        return new HashSet<String>(mDefaultStreamValues);
     }
 
     public String getDisplayNameFromValue(String value){
-        int index = StreamValues.indexOf(value);
-        if (index < 0){
+        Integer index = mIndex.get(value);
+        if (index == null){
             Log.e(TAG, "Stream value not found: " + value);
             return "";
         }
-        return StreamNames.get(index);
+        return mStreamNames[index];
     }
 
-    public Integer getButtonColorFromValue(String value){
-        Integer color = Color.parseColor("#FF555555");
-        int index = StreamValues.indexOf(value);
-        if (index < 0){
+    public int getButtonColorFromValue(String value){
+        Integer index = mIndex.get(value);
+        if (index == null){
             Log.e(TAG, "Stream value not found: " + value);
-            return color;
-        }
-        String input_color = ButtonColors.get(index);
-        try{
-            color = Color.parseColor(input_color);
-        } catch(Exception e) {
-            Log.e(TAG, "button_color decoded failed: " + input_color);
+            return DEFAULT_BUTTON_COLOR;
         }
-        return color;
+        return mButtonColors[index];
     }
 
     // Sorts the buttons so the order matches the JSON file
     // This will also silently drop saved streams if they are no longer in the JSON file
     public List<String> getSortedStreams(Set<String> unsorted){
         List<String> sorted = new ArrayList<String>();
-        for (String streamValue: StreamValues){
+        for (String streamValue: mStreamValues){
             if (unsorted.contains(streamValue)){
                 sorted.add(streamValue);
             }
@@ -0,0 +1,134 @@
+package com.divertsy.hid.ble;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ *  GattTransport on top of the Android BluetoothGatt API. The link is opened with
+ *  autoConnect, so once the peer is known Android reconnects to it in the background
+ *  whenever it's in range, without us scanning for it again.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class AndroidGattTransport implements GattTransport {
+
+    private static final String TAG = "AndroidGattTransport";
+
+    // Client Characteristic Configuration descriptor, where notifications are turned on
+    private static final UUID CLIENT_CONFIG_DESCRIPTOR =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final Context mContext;
+    private BluetoothGatt mGatt;
+    private Callback mCallback;
+
+    public AndroidGattTransport(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public synchronized void connect(String address, Callback callback) {
+        close();
+        BluetoothManager manager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter adapter = manager.getAdapter();
+        if (adapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            Log.w(TAG, "Can't connect to " + address);
+            return;
+        }
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        mCallback = callback;
+        mGatt = device.connectGatt(mContext, true, mGattCallback);
+    }
+
+    @Override
+    public synchronized boolean subscribe(UUID service, UUID characteristic) {
+        if (mGatt == null) {
+            return false;
+        }
+        BluetoothGattService gattService = mGatt.getService(service);
+        if (gattService == null) {
+            return false;
+        }
+        BluetoothGattCharacteristic gattCharacteristic = gattService.getCharacteristic(characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+        BluetoothGattDescriptor config = gattCharacteristic.getDescriptor(CLIENT_CONFIG_DESCRIPTOR);
+        if (config == null || !mGatt.setCharacteristicNotification(gattCharacteristic, true)) {
+            return false;
+        }
+        if ((gattCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            config.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        } else {
+            config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        }
+        return mGatt.writeDescriptor(config);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+        mCallback = null;
+    }
+
+    // The callback for gatt, or null if that link has been closed since
+    private synchronized Callback getCallback(BluetoothGatt gatt) {
+        return gatt == mGatt ? mCallback : null;
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Callback callback = getCallback(gatt);
+            if (callback == null) {
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG, "Connected to " + gatt.getDevice().getAddress());
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Disconnected from " + gatt.getDevice().getAddress() + " status " + status);
+                callback.onDisconnected();
+                // Wait in the background for the peer to come back
+                gatt.connect();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Callback callback = getCallback(gatt);
+            if (callback == null) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                callback.onReady();
+            } else {
+                Log.w(TAG, "Service discovery failed with status " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            Callback callback = getCallback(gatt);
+            if (callback != null) {
+                callback.onNotification(characteristic.getService().getUuid(),
+                        characteristic.getUuid(), characteristic.getValue());
+            }
+        }
+    };
+}
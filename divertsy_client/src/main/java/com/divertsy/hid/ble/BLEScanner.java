@@ -16,23 +16,29 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.divertsy.hid.scale.ScaleSourceBus;
+
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.TreeSet;
 
 import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 
@@ -61,84 +67,193 @@ public class BLEScanner {
     // fro the amount of milli-seconds defined here
     private static final int ON_LOST_TIMEOUT_MS = 5000;
 
+    // Lost beacon deadlines are rounded up to this, so every beacon due in the same tick
+    // expires on one worker wakeup. A beacon can stay up to this much longer than the timeout.
+    private static final int EXPIRY_TICK_MS = ON_LOST_TIMEOUT_MS / 2;
+
+    // Another beacon has to be this much stronger (smoothed, in dB) before it takes over
+    // as the closest one. Keeps the location from flapping between two beacons.
+    private static final double CLOSEST_HYSTERESIS_DB = 6.0;
+
+    // How often the last known location is saved again while the closest beacon stays the same
+    private static final long LAST_KNOWN_REFRESH_MS = 60 * 60 * 1000;
+
     private static final String TAG = "BLEScanner";
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 2;
 
 
     public interface OnClosestChangedListener {
-        void onClosestChanged(@Nullable Beacon closest);
+        void onClosestChanged(@Nullable BeaconLocation closest);
     }
 
-    // An aggressive scan for nearby devices that reports immediately.
-    private static final ScanSettings SCAN_SETTINGS =
+    // Stay in the active scan mode for this long after the last sign of someone using the bin
+    private static final int ACTIVE_HOLD_MS = 30000;
+
+    // How long the controller may hold results in idle mode before handing over a batch.
+    // This must stay well under ON_LOST_TIMEOUT_MS or beacons would drop out between batches.
+    private static final int IDLE_REPORT_DELAY_MS = 2000;
+
+    // An aggressive scan for nearby devices that reports immediately. Used while a scale is
+    // active or someone is weighing something.
+    private static final ScanSettings ACTIVE_SCAN_SETTINGS =
             new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).setReportDelay(0)
                     .build();
 
+    // A lighter scan for when nobody is at the bin, batched if the controller can do it.
+    private static final ScanSettings IDLE_SCAN_SETTINGS =
+            new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_BALANCED).setReportDelay(0)
+                    .build();
+    private static final ScanSettings IDLE_BATCHED_SCAN_SETTINGS =
+            new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                    .setReportDelay(IDLE_REPORT_DELAY_MS).build();
+
     private static final Handler handler = new Handler(Looper.getMainLooper());
 
     // UUID for finding Wit Traveller scales. This is hacky since it's a very broad UUID and will
     // match non-scale devices. Scan results will contain false positive results.
     private static final ParcelUuid WIT_SCALE_UUID =
             ParcelUuid.fromString("00001802-0000-1000-8000-00805f9b34fb");
+    // Scales with the standard Weight Scale Service, which we connect to over GATT
+    private static final ParcelUuid WEIGHT_SCALE_UUID =
+            new ParcelUuid(WeightScaleClient.WEIGHT_SCALE_SERVICE);
     // The Eddystone Service UUID, 0xFEAA.
     private static final ParcelUuid EDDYSTONE_SERVICE_UUID =
             ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    // Eddystone URL frames whose host starts with BEACON_HOST_NAME: frame type, then TX power
+    // and URL scheme which can be anything, then the host. Clearing bit 0x20 in the mask makes
+    // the letters match in either case.
+    private static final byte[] HAX_URL_FRAME = {Constants.URL_FRAME_TYPE, 0, 0, 'H', 'A', 'X'};
+    private static final byte[] HAX_URL_FRAME_MASK =
+            {(byte) 0xFF, 0, 0, (byte) 0xDF, (byte) 0xDF, (byte) 0xDF};
+    // Eddystone TLM frames, which don't say which beacon they're from. They're only let
+    // through from the addresses of beacons we already know by their URL.
+    private static final byte[] TLM_FRAME = {Constants.TLM_FRAME_TYPE};
+    private static final byte[] TLM_FRAME_MASK = {(byte) 0xFF};
+    // With more known beacons than this, let every TLM frame through
+    private static final int MAX_TLM_ADDRESS_FILTERS = 16;
+    // Newly found beacons get their TLM filter at most this often, each one restarts the scan
+    private static final long TLM_FILTER_UPDATE_DELAY_MS = 60 * 1000;
+    // With more namespaces in the UID location table than this, let every UID frame through
+    private static final int MAX_UID_NAMESPACE_FILTERS = 8;
     private final int mRequestEnableBluetooth;
     private final OnClosestChangedListener mOnClosestChangedListener;
+    private final BeaconLocationCache mLocationCache;
 
     private BluetoothLeScanner scanner;
+    private boolean mBatchingSupported;
+
+    // Whether we're scanning at all (between onResume and onPause), and in which mode
+    private boolean mScanning;
+    private boolean mActiveMode;
+    private long mLastActivityTime;
 
     private List<ScanFilter> scanFilters;
+    // The known beacons when scanFilters was built, TLM frames are let through from these
+    private List<String> mTlmAddresses = new ArrayList<>();
+    private boolean mTlmFilterUpdatePending;
+    private boolean mScanBeacons = true;
+    private boolean mScanScale = true;
     private ScanCallback scanCallback;
 
-    private Map<String, Beacon> deviceToBeaconMap = new HashMap<>();
+    // Every advertiser we've heard recently. Only our own beacons have Beacon objects.
+    private final BeaconTable mBeacons = new BeaconTable();
+
+    // Beacons with our host name, strongest first. A beacon is taken out before its smoothed
+    // RSSI changes and put back after, so the order always holds.
+    private final TreeSet<Beacon> mCandidates = new TreeSet<>(new Comparator<Beacon>() {
+        @Override
+        public int compare(Beacon a, Beacon b) {
+            int byRssi = Double.compare(b.smoothedRssi, a.smoothedRssi);
+            return byRssi != 0 ? byRssi : a.deviceAddress.compareTo(b.deviceAddress);
+        }
+    });
+    private final WitScaleDecoder mWitScaleDecoder = new WitScaleDecoder();
+    private final ScaleTracker mScaleTracker = new ScaleTracker();
+    private volatile String mTelemetryPath;
+    // Set when beacon locations can come from UID frames, see setUidLocationFile()
+    private volatile UidLocationTable mUidLocations;
+    // The last table loaded, so a new BLEScanner only reads the file again if it changed.
+    // Worker thread only.
+    private static UidLocationTable sUidLocations;
+    private static String sUidLocationsPath;
+    private static long sUidLocationsModified;
+    // Lives as long as the worker thread, so a new BLEScanner on resume carries on the series.
+    // Loaded from the CSV of the current office the first time it's needed.
+    private static BeaconTelemetry sTelemetry;
+    private static String sTelemetryPath;
+    // Outlives the BLEScanner, so the GATT link to the scale stays up between weigh-ins and
+    // across pauses. Only closed when BLE scales are turned off.
+    private static WeightScaleClient sWeightScaleClient;
+    // The scanner to tell when the GATT scale sends a reading, the one resumed last
+    private static volatile Runnable sOnScaleActivity;
 
     private Beacon mClosest;
 
+    // Run the full Eddystone validators on every frame, with error strings for each problem
+    private volatile boolean mDiagnostics;
+    private volatile String mClosestUrl;
+    private boolean mLastKnownPosted;
+    // When the closest beacon's location was last saved as the last known one, worker only
+    private long mLastKnownSavedAt;
+
+    // All scan results are handled on one background thread, which owns the beacon map,
+    // candidates, expiry heap and scale decoder. Nothing else touches them.
+    private static HandlerThread sWorkerThread;
+    private static final int MSG_SCAN_RESULT = 1;
+    private static final int MSG_BATCH_SCAN_RESULTS = 2;
+    private final Handler mWorker = new Handler(getWorkerLooper(), new Handler.Callback() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SCAN_RESULT:
+                    handleScanResult((ScanResult) msg.obj);
+                    return true;
+                case MSG_BATCH_SCAN_RESULTS:
+                    for (ScanResult result : (List<ScanResult>) msg.obj) {
+                        handleScanResult(result);
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    });
+
+    // Shared by every BLEScanner, MainActivity makes a new one each time it resumes
+    private static synchronized Looper getWorkerLooper() {
+        if (sWorkerThread == null) {
+            sWorkerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            sWorkerThread.start();
+        }
+        return sWorkerThread.getLooper();
+    }
+
+    // Lost beacon deadlines by packed address, soonest first. There's one entry per beacon, set
+    // when it's first seen. Beacons seen again since are only pushed back when their entry
+    // comes up. Deadlines are on EXPIRY_TICK_MS boundaries.
+    private final DeadlineHeap mExpiries = new DeadlineHeap();
+    private boolean mExpiryScheduled;
+
     public BLEScanner(final Activity activity, int requestEnableBluetooth, @NonNull OnClosestChangedListener onClosestChangedListener) {
         mRequestEnableBluetooth = requestEnableBluetooth;
         mOnClosestChangedListener = onClosestChangedListener;
+        mLocationCache = BeaconLocationCache.get(activity);
         init(activity);
 
-        // This will limit the BLE results we look at to only ones matching these UUID filters
-        scanFilters = new ArrayList<>();
-        scanFilters.add(new ScanFilter.Builder().setServiceUuid(EDDYSTONE_SERVICE_UUID).build());
-        scanFilters.add(new ScanFilter.Builder().setServiceUuid(WIT_SCALE_UUID).build());
+        scanFilters = buildScanFilters();
 
         scanCallback = new ScanCallback() {
+            // Results arrive on the main thread, hand them straight to the worker
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
-                ScanRecord scanRecord = result.getScanRecord();
-                if (scanRecord == null) {
-                    return;
-                }
-
-                String deviceAddress = result.getDevice().getAddress();
-                String deviceName = result.getDevice().getName();
-
-                if (deviceName == null){
-                    deviceName = "";
-                }
-                // We should only have Eddystone or Scale results now, but need to check which one
-                if (! decodeScanRecordWeight(deviceName, scanRecord.getBytes())){
-
-                    // This now should be Eddystone data
-                    Beacon beacon;
-                    if (!deviceToBeaconMap.containsKey(deviceAddress)) {
-                        beacon = new Beacon(deviceAddress, result.getRssi());
-                        deviceToBeaconMap.put(deviceAddress, beacon);
-                    } else {
-                        deviceToBeaconMap.get(deviceAddress).lastSeenTimestamp = System.currentTimeMillis();
-                        deviceToBeaconMap.get(deviceAddress).rssi = result.getRssi();
-                    }
-
-                    byte[] serviceData = scanRecord.getServiceData(EDDYSTONE_SERVICE_UUID);
-                    validateServiceData(deviceAddress, serviceData);
-
-                    findClosest();
-
-                }
+                mWorker.obtainMessage(MSG_SCAN_RESULT, result).sendToTarget();
+            }
 
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                mWorker.obtainMessage(MSG_BATCH_SCAN_RESULTS, results).sendToTarget();
             }
 
             @Override
@@ -162,113 +277,204 @@ public class BLEScanner {
                 }
             }
 
-            /**
-             * Check if the BLE data contains scale information (currently tested with WIT Traveller
-             * devices.
-             *
-             * @param   deviceName BLE mac address
-             * @param   scanRecord  BLE scan beacon bytes
-             * @return  True if weight data was found in the array
-             */
-            private boolean decodeScanRecordWeight(String deviceName, byte[] scanRecord) {
-                // scanRecords appear to be 62 bytes, but useful data is located before that.
-                // set the min record length to the max array value we'll be pulling
-                int MIN_RECORD_LENGTH = 25;
-
-                // Check for proper packet magic flags
-                if ((scanRecord != null) && (scanRecord.length > MIN_RECORD_LENGTH))
-                    if ((scanRecord[3] == 0x07) && (scanRecord[19] == 0x09) && (scanRecord[20] == 0x00)) {
-                        byte key = scanRecord[22];
-
-                        // 6 digits of weight data stored in 3 bytes (2 nibbles each)
-                        int numThousandHundreds = scanRecord[22] ^ key;
-                        int numTensOne = scanRecord[23] ^ key;
-                        int numDecimalPlace = scanRecord[24] ^ key;
-
-                        // Mask out each high/low nibble and multiply to put in correct digit position
-                        double weight = (double) (((numThousandHundreds >> 4) & 15) * 1000);
-                        weight += (double) ((numThousandHundreds & 15) * 100);
-
-                        weight += (double) (((numTensOne >> 4) & 15) * 10);
-                        weight += (double) (numTensOne & 15);
-
-                        weight += ((double) ((numDecimalPlace >> 4) & 15)) * 0.1d;
-                        weight += ((double) (numDecimalPlace & 15)) * 0.01d;
-
-
-                        int weightType = scanRecord[21] ^ key;
-
-                        // Check for negative Flags, scale appears to be inconsistent about flagging this though
-                        if ((weightType & 0x60) == 0x60) {
-                            weight *= -1.0d;
-                        }
+        };
+    }
 
-                        // Status is different prior to "hold" of weight, so we'll filter out some bits
-                        weightType = (weightType >> 1) & 0x0B;
-
-                        String weightString;
-                        String unitString;
-                        switch (weightType) {
-                            case 0x00:
-                                weightString = String.format(Locale.ENGLISH, "%3.2f", weight);
-                                unitString = "KG";
-                                break;
-                            case 0x01:
-                                weightString = String.format(Locale.ENGLISH, "%3.2f", weight);
-                                unitString = "LBS";
-                                break;
-                            case 0x03:
-                                weightString = String.format(Locale.ENGLISH, "%5.0f", (weight * 100.0d));
-                                unitString = "G";
-                                break;
-                            case 0x08:
-                                weightString = String.format(Locale.ENGLISH, "%3.1f", (weight * 10.0d));
-                                unitString = "OZ";
-                                break;
-                            default:
-                                weightString = "0.0";
-                                unitString = "unknown";
-                        }
+    // Handles one scan result on the worker thread
+    private void handleScanResult(ScanResult result) {
+        ScanRecord scanRecord = result.getScanRecord();
+        if (scanRecord == null) {
+            return;
+        }
 
-                        Log.d(TAG, "Final Weight: " + weightString + " Unit: " + unitString);
+        String deviceAddress = result.getDevice().getAddress();
+        String deviceName = result.getDevice().getName();
 
-                        try{
-                            float weightFloat = Float.parseFloat(weightString);
+        if (deviceName == null){
+            deviceName = "";
+        }
+        List<ParcelUuid> serviceUuids = scanRecord.getServiceUuids();
+        if (serviceUuids != null && serviceUuids.contains(WEIGHT_SCALE_UUID)) {
+            // Weights come over the GATT connection, the advertisement only tells us it's here
+            WeightScaleClient client = getWeightScaleClient();
+            if (client != null && !client.hasScale()) {
+                client.connect(deviceAddress, deviceName);
+            }
+            return;
+        }
 
-                            Intent sendIntent = new Intent();
-                            sendIntent.setAction("com.divertsy.REMOTE_SCALE_WEIGHT");
-                            sendIntent.putExtra("floatScaleWeight", weightFloat);
-                            sendIntent.putExtra("stringScaleUnit", unitString);
-                            sendIntent.putExtra("stringScaleName", deviceName);
-                            APPCONTEXT.sendBroadcast(sendIntent);
+        // We should only have Eddystone or Scale results now, but need to check which one
+        if (! decodeScanRecordWeight(deviceAddress, deviceName, result.getRssi(), scanRecord.getBytes())){
 
-                        } catch (NumberFormatException e){
-                            Log.e(TAG, "Failed to parse weight float");
-                        }
+            // This now should be Eddystone data
+            long key = BeaconTable.packAddress(deviceAddress);
+            if (key == BeaconTable.NO_ADDRESS) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int rssi = result.getRssi();
+            int slot = mBeacons.find(key);
+            if (slot < 0) {
+                slot = mBeacons.add(key, rssi, now);
+                mExpiries.push(getExpiryDeadline(now), key);
+                scheduleExpiry();
+            } else {
+                mBeacons.seen(slot, rssi, now);
+            }
 
-                        return true;
-                    }
-                return false;
+            Beacon beacon = mBeacons.getBeacon(slot);
+            if (beacon != null) {
+                updateBeaconRssi(beacon, rssi, mBeacons.getSmoothedRssi(slot));
             }
 
+            if (mDiagnostics) {
+                if (beacon == null) {
+                    beacon = newBeacon(slot, deviceAddress, rssi);
+                }
+                byte[] serviceData = scanRecord.getServiceData(EDDYSTONE_SERVICE_UUID);
+                validateServiceData(beacon, serviceData);
+                updateCandidate(beacon);
+            } else {
+                readFrame(slot, deviceAddress, rssi, scanRecord.getBytes());
+            }
+
+            findClosest();
+
+        }
 
-        };
+    }
+
+    /**
+     * Check if the BLE data contains scale information (currently tested with WIT Traveller
+     * devices.
+     *
+     * @param   deviceAddress BLE mac address
+     * @param   deviceName BLE device name
+     * @param   rssi signal strength of this advertisement
+     * @param   scanRecord  BLE scan beacon bytes
+     * @return  True if weight data was found in the array
+     */
+    private boolean decodeScanRecordWeight(String deviceAddress, String deviceName, int rssi, byte[] scanRecord) {
+        long now = SystemClock.elapsedRealtime();
+        int decoded = mWitScaleDecoder.decode(deviceAddress, scanRecord, now);
+        if (decoded == WitScaleDecoder.NOT_A_SCALE) {
+            return false;
+        }
+        mScaleTracker.seen(deviceAddress, rssi, now);
+        if (decoded == WitScaleDecoder.UNCHANGED) {
+            return true;
+        }
+
+        // Divide the fixed point value as a double, so 70.3 stays 70.3 and not the float's
+        // 70.30000305 widened
+        double weight = (double) mWitScaleDecoder.getFixedWeight() / mWitScaleDecoder.getDivisor();
+        String unitString = mWitScaleDecoder.getUnitName();
+
+        // Other scales in range are tracked, but only the selected one gets shown
+        if (!mScaleTracker.onReading(deviceAddress, deviceName, weight, unitString, now)) {
+            return true;
+        }
+
+        // A scale is talking to us, so keep scanning fast while it's in use
+        handler.post(mOnScaleActivity);
+
+        Log.d(TAG, "Final Weight: " + weight + " Unit: " + unitString);
+        ScaleSourceBus.get().publish(ScaleSourceBus.SOURCE_BLE, weight, unitString, deviceName);
+
+        return true;
     }
 
     public void onPause() {
+        mScanning = false;
+        handler.removeCallbacks(mIdleCheck);
+        handler.removeCallbacks(mTlmFilterUpdate);
+        mTlmFilterUpdatePending = false;
+        mWorker.removeCallbacksAndMessages(null);
         if (scanner != null) {
             scanner.stopScan(scanCallback);
         }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                exportTelemetry();
+            }
+        });
     }
 
     public void onResume() {
-        handler.removeCallbacksAndMessages(null);
+        sOnScaleActivity = mOnScaleActivity;
+
+        // Only our own runnables, the handler is shared and the last known location may
+        // still be on its way to the listener
+        handler.removeCallbacks(mIdleCheck);
 
-        setOnLostRunnable();
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mExpiryScheduled = false;
+                scheduleExpiry();
+            }
+        });
 
+        mScanning = true;
+        mActiveMode = SystemClock.elapsedRealtime() - mLastActivityTime < ACTIVE_HOLD_MS
+                && mLastActivityTime > 0;
         if (scanner != null) {
-            scanner.startScan(scanFilters, SCAN_SETTINGS, scanCallback);
+            scanner.startScan(scanFilters, getScanSettings(), scanCallback);
+        }
+        if (mActiveMode) {
+            handler.postDelayed(mIdleCheck, ACTIVE_HOLD_MS);
+        }
+    }
+
+    /**
+     * Call when there is a sign someone is using the bin, like a weight reading or a touch.
+     * This switches to the low latency scan until things have been quiet for ACTIVE_HOLD_MS.
+     */
+    public void onActivity() {
+        mLastActivityTime = SystemClock.elapsedRealtime();
+        if (mScanning && !mActiveMode) {
+            Log.d(TAG, "Switching to active scan mode");
+            mActiveMode = true;
+            restartScan();
+            handler.postDelayed(mIdleCheck, ACTIVE_HOLD_MS);
+        }
+    }
+
+    // Drops back to the idle scan once there has been no activity for ACTIVE_HOLD_MS
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning || !mActiveMode) {
+                return;
+            }
+            long quiet = SystemClock.elapsedRealtime() - mLastActivityTime;
+            if (quiet < ACTIVE_HOLD_MS) {
+                handler.postDelayed(this, ACTIVE_HOLD_MS - quiet);
+                return;
+            }
+            Log.d(TAG, "Switching to idle scan mode");
+            mActiveMode = false;
+            restartScan();
+        }
+    };
+
+    private ScanSettings getScanSettings() {
+        if (mActiveMode) {
+            return ACTIVE_SCAN_SETTINGS;
+        }
+        return mBatchingSupported ? IDLE_BATCHED_SCAN_SETTINGS : IDLE_SCAN_SETTINGS;
+    }
+
+    // Settings can't be changed on a running scan, so stop it and start again with the new ones.
+    // The hold time keeps this well under the platform's limit on scan starts.
+    private void restartScan() {
+        if (scanner == null) {
+            return;
         }
+        scanner.flushPendingScanResults(scanCallback);
+        scanner.stopScan(scanCallback);
+        scanner.startScan(scanFilters, getScanSettings(), scanCallback);
     }
 
     public void onRequestPermissionsResult(int requestCode, int[] grantResults) {
@@ -282,51 +488,346 @@ public class BLEScanner {
         }
     }
 
-    @Nullable
-    public String getClosestLocation() {
-        return mClosest == null ? null : mClosest.urlStatus.toString();
+    /**
+     * Limits the BLE results we look at to the ones that can matter. On chipsets with
+     * offloaded filtering everything else is dropped before it wakes the app. The checks in
+     * handleScanResult stay, since not every chipset filters in hardware.
+     */
+    private List<ScanFilter> buildScanFilters() {
+        mTlmAddresses = mLocationCache.getAddresses(BEACON_HOST_NAME);
+        List<ScanFilter> filters = new ArrayList<>();
+        if (mScanBeacons) {
+            if (mDiagnostics) {
+                // Diagnostics looks at every frame of every Eddystone beacon
+                filters.add(new ScanFilter.Builder().setServiceUuid(EDDYSTONE_SERVICE_UUID).build());
+            } else {
+                filters.add(new ScanFilter.Builder()
+                        .setServiceData(EDDYSTONE_SERVICE_UUID, HAX_URL_FRAME, HAX_URL_FRAME_MASK)
+                        .build());
+                if (mTelemetryPath != null) {
+                    addTlmFilters(filters, mTlmAddresses);
+                }
+                UidLocationTable uidLocations = mUidLocations;
+                if (uidLocations != null) {
+                    addUidFilters(filters, uidLocations.getNamespaces());
+                }
+            }
+        }
+        if (mScanScale) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(WEIGHT_SCALE_UUID).build());
+            // The WIT magic bytes sit at fixed offsets of the raw record rather than in
+            // manufacturer or service data, so a filter can't match them.
+            filters.add(new ScanFilter.Builder().setServiceUuid(WIT_SCALE_UUID).build());
+        }
+        return filters;
+    }
+
+    // TLM frames from the beacons at addresses, or from everything if there are too many
+    private static void addTlmFilters(List<ScanFilter> filters, List<String> addresses) {
+        if (addresses.size() > MAX_TLM_ADDRESS_FILTERS) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceData(EDDYSTONE_SERVICE_UUID, TLM_FRAME, TLM_FRAME_MASK).build());
+            return;
+        }
+        for (String address : addresses) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address)
+                    .setServiceData(EDDYSTONE_SERVICE_UUID, TLM_FRAME, TLM_FRAME_MASK).build());
+        }
+    }
+
+    // UID frames from the namespaces in the location table
+    private static void addUidFilters(List<ScanFilter> filters, List<byte[]> namespaces) {
+        int frameLength = 2 + UidLocationTable.NAMESPACE_LENGTH;
+        if (namespaces.size() > MAX_UID_NAMESPACE_FILTERS) {
+            filters.add(new ScanFilter.Builder().setServiceData(EDDYSTONE_SERVICE_UUID,
+                    new byte[]{Constants.UID_FRAME_TYPE}, new byte[]{(byte) 0xFF}).build());
+            return;
+        }
+        for (byte[] namespace : namespaces) {
+            byte[] frame = new byte[frameLength];
+            byte[] mask = new byte[frameLength];
+            frame[0] = Constants.UID_FRAME_TYPE;
+            mask[0] = (byte) 0xFF;
+            // Skip TX power, then the namespace has to match
+            System.arraycopy(namespace, 0, frame, 2, namespace.length);
+            Arrays.fill(mask, 2, frameLength, (byte) 0xFF);
+            filters.add(new ScanFilter.Builder()
+                    .setServiceData(EDDYSTONE_SERVICE_UUID, frame, mask).build());
+        }
+    }
+
+    private void updateScanFilters() {
+        scanFilters = buildScanFilters();
+        if (mScanning) {
+            restartScan();
+        }
     }
 
-    private void setOnLostRunnable() {
-        Runnable removeLostDevices = new Runnable() {
+    // On the main thread. New beacons tend to turn up together, so wait a bit and add them
+    // with one scan restart.
+    private final Runnable mScheduleTlmFilterUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScanning || mTlmFilterUpdatePending) {
+                return;
+            }
+            // Nothing to add if TLM frames aren't filtered by address right now
+            if (!mScanBeacons || mDiagnostics || mTelemetryPath == null
+                    || mTlmAddresses.size() > MAX_TLM_ADDRESS_FILTERS) {
+                return;
+            }
+            mTlmFilterUpdatePending = true;
+            handler.postDelayed(mTlmFilterUpdate, TLM_FILTER_UPDATE_DELAY_MS);
+        }
+    };
+
+    private final Runnable mTlmFilterUpdate = new Runnable() {
+        @Override
+        public void run() {
+            mTlmFilterUpdatePending = false;
+            if (mScanning && !mTlmAddresses.equals(mLocationCache.getAddresses(BEACON_HOST_NAME))) {
+                updateScanFilters();
+            }
+        }
+    };
+
+    public void setDiagnostics(boolean diagnostics) {
+        mDiagnostics = diagnostics;
+        updateScanFilters();
+    }
+
+    /**
+     * Sets how to pick one scale when several advertising scales are in range.
+     *
+     * @param policy "nearest", "recent" or "pinned"
+     * @param pinnedAddress the scale to use with the pinned policy
+     */
+    public void setScalePolicy(String policy, final String pinnedAddress) {
+        final int scalePolicy = ScaleTracker.parsePolicy(policy);
+        mWorker.post(new Runnable() {
             @Override
             public void run() {
-                long time = System.currentTimeMillis();
-                Iterator<Map.Entry<String, Beacon>> itr = deviceToBeaconMap.entrySet().iterator();
-                boolean findClosest = false;
-                while (itr.hasNext()) {
-                    Beacon beacon = itr.next().getValue();
-                    if ((time - beacon.lastSeenTimestamp) > ON_LOST_TIMEOUT_MS) {
-                        itr.remove();
-                    }
-                    if (beacon == mClosest) {
-                        findClosest = true;
+                mScaleTracker.setPolicy(scalePolicy, pinnedAddress);
+            }
+        });
+    }
+
+    /**
+     * Turns on locations from UID frames, looked up in the table in path. The file is read
+     * on the worker thread, and again only when it has changed. null turns it off.
+     */
+    public void setUidLocationFile(@Nullable final String path) {
+        if (path == null) {
+            mUidLocations = null;
+            updateScanFilters();
+            return;
+        }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(path);
+                long modified = file.lastModified();
+                if (!path.equals(sUidLocationsPath) || modified != sUidLocationsModified) {
+                    sUidLocationsPath = path;
+                    sUidLocationsModified = modified;
+                    try {
+                        sUidLocations = UidLocationTable.load(file);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not read beacon locations: " + e.getMessage());
+                        sUidLocations = null;
                     }
                 }
+                mUidLocations = sUidLocations;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateScanFilters();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Picks what to scan for, beacons for the bin location and/or BLE scales.
+     */
+    public void setSources(boolean beacons, boolean scale) {
+        mScanBeacons = beacons;
+        mScanScale = scale;
+        if (scale) {
+            startWeightScaleClient(APPCONTEXT);
+        } else {
+            closeWeightScaleClient();
+        }
+        updateScanFilters();
+        if (beacons && !mLastKnownPosted) {
+            postLastKnown();
+        }
+    }
+
+    // Start out where we were last time, until a beacon says otherwise. Only used with beacons
+    // on, a scale-only kiosk shouldn't get a location.
+    private void postLastKnown() {
+        mLastKnownPosted = true;
+        final BeaconLocation lastKnown = mLocationCache.getLastKnown();
+        if (lastKnown == null) {
+            return;
+        }
+        mClosestUrl = lastKnown.url;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mOnClosestChangedListener.onClosestChanged(lastKnown);
+            }
+        });
+    }
+
+    private static synchronized void startWeightScaleClient(Context context) {
+        if (sWeightScaleClient == null) {
+            sWeightScaleClient = new WeightScaleClient(new AndroidGattTransport(context),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Runnable onScaleActivity = sOnScaleActivity;
+                            if (onScaleActivity != null) {
+                                handler.post(onScaleActivity);
+                            }
+                        }
+                    });
+        }
+    }
+
+    @Nullable
+    private static synchronized WeightScaleClient getWeightScaleClient() {
+        return sWeightScaleClient;
+    }
 
-                if (findClosest) {
-                    findClosest();
+    /**
+     * Drops the link to a GATT weight scale, for when BLE scales get turned off.
+     */
+    public static synchronized void closeWeightScaleClient() {
+        if (sWeightScaleClient != null) {
+            sWeightScaleClient.close();
+            sWeightScaleClient = null;
+        }
+    }
+
+    @Nullable
+    public String getClosestLocation() {
+        return mClosestUrl;
+    }
+
+    private final Runnable mOnScaleActivity = new Runnable() {
+        @Override
+        public void run() {
+            onActivity();
+        }
+    };
+
+    // Expires beacons whose deadline has passed, then sleeps until the next deadline
+    private final Runnable mExpireBeacons = new Runnable() {
+        @Override
+        public void run() {
+            mExpiryScheduled = false;
+            long time = System.currentTimeMillis();
+            boolean findClosest = false;
+            while (!mExpiries.isEmpty() && mExpiries.peekDeadline() < time) {
+                long key = mExpiries.peekKey();
+                mExpiries.pop();
+                int slot = mBeacons.find(key);
+                if (slot < 0) {
+                    continue;
+                }
+                // Seen again since this deadline was set, so it just moves later
+                long lastSeen = mBeacons.getLastSeen(slot);
+                if (lastSeen + ON_LOST_TIMEOUT_MS >= time) {
+                    mExpiries.push(getExpiryDeadline(lastSeen), key);
+                    continue;
                 }
+                Beacon beacon = mBeacons.remove(slot);
+                if (beacon == null) {
+                    continue;
+                }
+                if (beacon.isCandidate) {
+                    mCandidates.remove(beacon);
+                    beacon.isCandidate = false;
+                }
+                if (beacon == mClosest) {
+                    findClosest = true;
+                }
+            }
 
-                handler.postDelayed(this, ON_LOST_TIMEOUT_MS);
+            if (findClosest) {
+                findClosest();
             }
-        };
-        handler.postDelayed(removeLostDevices, ON_LOST_TIMEOUT_MS);
+            scheduleExpiry();
+        }
+    };
+
+    // When a beacon last seen at lastSeen is lost, rounded up to the next tick
+    private static long getExpiryDeadline(long lastSeen) {
+        long deadline = lastSeen + ON_LOST_TIMEOUT_MS;
+        return (deadline / EXPIRY_TICK_MS + 1) * EXPIRY_TICK_MS;
+    }
+
+    private void scheduleExpiry() {
+        if (mExpiryScheduled || mExpiries.isEmpty()) {
+            return;
+        }
+        long delay = mExpiries.peekDeadline() - System.currentTimeMillis() + 1;
+        mWorker.postDelayed(mExpireBeacons, Math.max(0, delay));
+        mExpiryScheduled = true;
+    }
+
+    // Adds or removes the beacon from the candidates after its URL may have changed
+    private void updateCandidate(Beacon beacon) {
+        boolean isCandidate = beacon.location != null && beacon.location.hasHost(BEACON_HOST_NAME);
+        if (isCandidate == beacon.isCandidate) {
+            return;
+        }
+        if (isCandidate) {
+            mCandidates.add(beacon);
+        } else {
+            mCandidates.remove(beacon);
+        }
+        beacon.isCandidate = isCandidate;
     }
 
     private void findClosest() {
         Beacon oldClosest = mClosest;
-        mClosest = null;
-        for (Beacon other : deviceToBeaconMap.values()) {
-            if (other.urlStatus != null) {
-                Uri url = other.urlStatus.getUrl();
-                if (url != null && BEACON_HOST_NAME.equalsIgnoreCase(url.getHost()) && (mClosest == null || mClosest.rssi < other.rssi)) {
-                    mClosest = other;
-                }
-            }
+        Beacon strongest = mCandidates.isEmpty() ? null : mCandidates.first();
+        boolean oldStillValid = oldClosest != null && oldClosest.isCandidate;
+
+        // Only move away from the current closest beacon if it's gone, or another one is
+        // clearly stronger
+        if (oldStillValid && strongest != oldClosest
+                && strongest.smoothedRssi < oldClosest.smoothedRssi + CLOSEST_HYSTERESIS_DB) {
+            return;
         }
+        mClosest = strongest;
         if ((mClosest == null && oldClosest != null) || (mClosest != null && !mClosest.equals(oldClosest))) {
-            mOnClosestChangedListener.onClosestChanged(mClosest);
+            // Only the location goes to the UI thread, the Beacon itself stays with the worker
+            final BeaconLocation location = mClosest == null ? null : mClosest.location;
+            mClosestUrl = location == null ? null : location.url;
+            saveLastKnown(location);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOnClosestChangedListener.onClosestChanged(location);
+                }
+            });
+        } else if (mClosest != null
+                && SystemClock.elapsedRealtime() - mLastKnownSavedAt >= LAST_KNOWN_REFRESH_MS) {
+            saveLastKnown(mClosest.location);
+        }
+    }
+
+    // Also called again while the same beacon stays closest, so a kiosk that never moves
+    // doesn't see its last known location expire
+    private void saveLastKnown(@Nullable BeaconLocation location) {
+        if (location != null && location.hasFloorAndPlace()) {
+            mLocationCache.setLastKnown(location);
+            mLastKnownSavedAt = SystemClock.elapsedRealtime();
         }
     }
 
@@ -370,14 +871,141 @@ public class BLEScanner {
             return false;
         } else {
             scanner = btAdapter.getBluetoothLeScanner();
+            mBatchingSupported = btAdapter.isOffloadedScanBatchingSupported();
         }
         return true;
     }
 
 
+    // Keeps a full Beacon object for the advertiser in slot from now on
+    private Beacon newBeacon(int slot, String deviceAddress, int rssi) {
+        Beacon beacon = new Beacon(deviceAddress, rssi);
+        beacon.smoothedRssi = mBeacons.getSmoothedRssi(slot);
+        mBeacons.setBeacon(slot, beacon);
+        // So the next UID frame gets copied into the new object
+        mBeacons.setUidHash(slot, 0);
+        return beacon;
+    }
+
+    // A beacon we know from before. It can be used right away, without waiting for its URL
+    // frame to come round again.
+    private Beacon newCachedBeacon(int slot, String deviceAddress, int rssi, BeaconLocation location) {
+        Beacon beacon = newBeacon(slot, deviceAddress, rssi);
+        beacon.location = location;
+        updateCandidate(beacon);
+        return beacon;
+    }
+
+    private void rememberLocation(Beacon beacon) {
+        if (beacon.isCandidate && mLocationCache.put(beacon.deviceAddress, beacon.location)) {
+            // Its TLM frames only get through once it has a filter
+            handler.post(mScheduleTlmFilterUpdate);
+        }
+    }
+
+    private void updateBeaconRssi(Beacon beacon, int rssi, double smoothedRssi) {
+        if (beacon.isCandidate) {
+            mCandidates.remove(beacon);
+        }
+        beacon.rssi = rssi;
+        beacon.smoothedRssi = smoothedRssi;
+        if (beacon.isCandidate) {
+            mCandidates.add(beacon);
+        }
+    }
+
+    /**
+     * Reads the Eddystone frame straight out of the advertisement. A frame with the same hash
+     * as the last one of its type from this advertiser is skipped, and only URL frames, which
+     * carry the location, get decoded. An advertiser only gets a Beacon object once its URL
+     * has our host name.
+     */
+    private void readFrame(int slot, String deviceAddress, int rssi, byte[] record) {
+        if (record == null) {
+            return;
+        }
+        int offset = EddystoneFrames.findServiceData(record);
+        if (offset < 0) {
+            return;
+        }
+        int length = EddystoneFrames.getServiceDataLength(record, offset);
+        if (length < 2) {
+            return;
+        }
+        Beacon beacon = mBeacons.getBeacon(slot);
+        int hash = EddystoneFrames.hash(record, offset, length);
+        switch (record[offset]) {
+            case Constants.UID_FRAME_TYPE:
+                if (hash != mBeacons.getUidHash(slot)) {
+                    mBeacons.setUidHash(slot, hash);
+                    UidLocationTable uidLocations = mUidLocations;
+                    BeaconLocation listed = uidLocations == null
+                            || length < 2 + UidLocationTable.UID_LENGTH
+                            ? null : uidLocations.get(record, offset + 2);
+                    if (listed != null) {
+                        if (beacon == null) {
+                            beacon = newCachedBeacon(slot, deviceAddress, rssi, listed);
+                            mBeacons.setUidHash(slot, hash);
+                        } else {
+                            beacon.location = listed;
+                            updateCandidate(beacon);
+                        }
+                        beacon.hasUidLocation = true;
+                        beacon.uidServiceData = Arrays.copyOfRange(record, offset, offset + length);
+                        rememberLocation(beacon);
+                    } else if (beacon != null) {
+                        beacon.hasUidLocation = false;
+                        beacon.uidServiceData = Arrays.copyOfRange(record, offset, offset + length);
+                    }
+                }
+                if (beacon != null) {
+                    beacon.hasUidFrame = true;
+                }
+                break;
+            case Constants.TLM_FRAME_TYPE:
+                if (beacon == null && mBeacons.getUrlHash(slot) == 0) {
+                    BeaconLocation cached = mLocationCache.getByAddress(deviceAddress);
+                    if (cached != null && cached.hasHost(BEACON_HOST_NAME)) {
+                        beacon = newCachedBeacon(slot, deviceAddress, rssi, cached);
+                    }
+                }
+                if (beacon != null) {
+                    beacon.hasTlmFrame = true;
+                    recordTelemetry(beacon, record, offset, length);
+                }
+                break;
+            case Constants.URL_FRAME_TYPE:
+                if (hash == mBeacons.getUrlHash(slot)) {
+                    break;
+                }
+                mBeacons.setUrlHash(slot, hash);
+                if (beacon != null && beacon.hasUidLocation) {
+                    break;
+                }
+                BeaconLocation location = UrlValidator.getLocation(record, offset, length, hash);
+                if (beacon == null) {
+                    if (location == null || !location.hasHost(BEACON_HOST_NAME)) {
+                        break;
+                    }
+                    beacon = newBeacon(slot, deviceAddress, rssi);
+                }
+                beacon.hasUrlFrame = true;
+                beacon.urlServiceData = Arrays.copyOfRange(record, offset, offset + length);
+                UrlValidator.setLocation(beacon, location);
+                updateCandidate(beacon);
+                rememberLocation(beacon);
+                // Not one of ours any more, so the table alone is enough
+                if (!beacon.isCandidate) {
+                    mBeacons.setBeacon(slot, null);
+                }
+                break;
+        }
+    }
+
     // Checks the frame type and hands off the service data to the validation module.
-    private void validateServiceData(String deviceAddress, byte[] serviceData) {
-        Beacon beacon = deviceToBeaconMap.get(deviceAddress);
+    // Only used in diagnostics mode, since it copies and formats a lot for every frame.
+    private void validateServiceData(Beacon beacon, byte[] serviceData) {
+        String deviceAddress = beacon.deviceAddress;
         if (serviceData == null) {
             String err = "Null Eddystone service data";
             beacon.frameStatus.nullServiceData = err;
@@ -390,9 +1018,12 @@ public class BLEScanner {
                 break;
             case Constants.TLM_FRAME_TYPE:
                 TlmValidator.validate(deviceAddress, serviceData, beacon);
+                recordTelemetry(beacon, serviceData, 0, serviceData.length);
                 break;
             case Constants.URL_FRAME_TYPE:
                 UrlValidator.validate(deviceAddress, serviceData, beacon);
+                updateCandidate(beacon);
+                rememberLocation(beacon);
                 break;
             default:
                 String err = String.format("Invalid frame type byte %02X", serviceData[0]);
@@ -402,6 +1033,52 @@ public class BLEScanner {
         }
     }
 
+    private void recordTelemetry(Beacon beacon, byte[] frame, int offset, int length) {
+        BeaconTelemetry telemetry = getTelemetry();
+        if (telemetry == null) {
+            return;
+        }
+        String url = beacon.location != null ? beacon.location.url : null;
+        if (telemetry.add(beacon.deviceAddress, url, frame, offset, length,
+                System.currentTimeMillis())) {
+            telemetry.export(sTelemetryPath);
+        }
+    }
+
+    private void exportTelemetry() {
+        BeaconTelemetry telemetry = getTelemetry();
+        if (telemetry != null && !telemetry.isEmpty()) {
+            telemetry.export(sTelemetryPath);
+        }
+    }
+
+    // The telemetry for the current file, on the worker thread only
+    @Nullable
+    private BeaconTelemetry getTelemetry() {
+        String path = mTelemetryPath;
+        if (path == null) {
+            return null;
+        }
+        if (sTelemetry == null || !path.equals(sTelemetryPath)) {
+            sTelemetry = new BeaconTelemetry();
+            sTelemetry.load(path);
+            sTelemetryPath = path;
+        }
+        return sTelemetry;
+    }
+
+    /**
+     * Sets the CSV file beacon telemetry gets written to. It's rewritten every hour and when
+     * scanning pauses. With no file, TLM frames aren't scanned for at all.
+     */
+    public void setTelemetryFile(String path) {
+        boolean changed = (path == null) != (mTelemetryPath == null);
+        mTelemetryPath = path;
+        if (changed) {
+            updateScanFilters();
+        }
+    }
+
     private void logErrorAndShowToast(Activity activity, String message) {
         Toast.makeText(activity, message, Toast.LENGTH_SHORT).show();
         Log.e(TAG, message);
@@ -24,15 +24,26 @@ import android.support.annotation.Nullable;
 public class Beacon {
 
     private static final String BULLET = "● ";
+
+    // How much each new RSSI sample moves the smoothed value. Lower is steadier but slower.
+    static final double RSSI_SMOOTHING = 0.25;
+
     final String deviceAddress;
     int rssi;
+    // Exponential moving average of rssi, this is what closest beacon selection uses.
+    // BeaconTable keeps the average, this is a copy of it.
+    double smoothedRssi;
+
+    // Parsed from the URL frame whenever the URL changes, null until we've seen one
+    @Nullable public BeaconLocation location;
+    // Whether BLEScanner has this beacon in its closest beacon candidates
+    boolean isCandidate;
+    // Whether location came from the UID location table, which URL frames don't override
+    boolean hasUidLocation;
     // TODO: rename to make explicit the validation intent of this timestamp. We use it to
     // remember a recent frame to make sure that non-monotonic TLM values increase.
     long timestamp = System.currentTimeMillis();
 
-    // Used to remove devices from the listview when they haven't been seen in a while.
-    long lastSeenTimestamp = System.currentTimeMillis();
-
     byte[] uidServiceData;
     byte[] tlmServiceData;
     byte[] urlServiceData;
@@ -177,8 +188,10 @@ public class Beacon {
     Beacon(String deviceAddress, int rssi) {
         this.deviceAddress = deviceAddress;
         this.rssi = rssi;
+        this.smoothedRssi = rssi;
     }
 
+
     /**
      * Performs a case-insensitive contains test of s on the device address (with or without the
      * colon separators) and/or the UID value, and/or the URL value.
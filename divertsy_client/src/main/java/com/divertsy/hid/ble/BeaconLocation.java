@@ -0,0 +1,78 @@
+package com.divertsy.hid.ble;
+
+import android.support.annotation.Nullable;
+
+/**
+ *  The location data in a beacon URL like http://HAX/F1/KITCHEN, split up once when the
+ *  beacon's URL frame changes. host is "HAX", floor is "F1" and place is "KITCHEN". floor and
+ *  place are null if the URL path doesn't have them.
+ */
+public class BeaconLocation {
+
+    public final String url;
+    public final String host;
+    @Nullable public final String floor;
+    @Nullable public final String place;
+
+    private BeaconLocation(String url, String host, String floor, String place) {
+        this.url = url;
+        this.host = host;
+        this.floor = floor;
+        this.place = place;
+    }
+
+    /**
+     * A location that didn't come from a URL frame, with the URL a HAX beacon at that floor
+     * and place would send. Nothing limits the length here.
+     */
+    static BeaconLocation of(String floor, String place) {
+        return new BeaconLocation("http://HAX/" + floor + "/" + place, "HAX", floor, place);
+    }
+
+    public boolean hasHost(String hostName) {
+        return hostName.equalsIgnoreCase(host);
+    }
+
+    public boolean hasFloorAndPlace() {
+        return floor != null && place != null;
+    }
+
+    /**
+     * Splits a decoded Eddystone URL. Beacon URLs are short and plain, so this only looks for
+     * the scheme, the host and the first two path segments.
+     */
+    public static BeaconLocation parse(String url) {
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = url.length();
+        for (int i = start; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        int hostEnd = start;
+        while (hostEnd < end && url.charAt(hostEnd) != '/' && url.charAt(hostEnd) != ':') {
+            hostEnd++;
+        }
+        String host = url.substring(start, hostEnd);
+
+        String[] segments = new String[2];
+        int found = 0;
+        int segmentStart = url.indexOf('/', hostEnd);
+        while (segmentStart >= 0 && segmentStart < end && found < segments.length) {
+            int segmentEnd = url.indexOf('/', segmentStart + 1);
+            if (segmentEnd < 0 || segmentEnd > end) {
+                segmentEnd = end;
+            }
+            if (segmentEnd > segmentStart + 1) {
+                segments[found++] = url.substring(segmentStart + 1, segmentEnd);
+            }
+            segmentStart = segmentEnd < end ? segmentEnd : -1;
+        }
+
+        return new BeaconLocation(url, host, segments[0], segments[1]);
+    }
+}
@@ -0,0 +1,115 @@
+package com.divertsy.hid.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  BeaconLocationCache remembers the location URL of every HAX beacon we've seen by its
+ *  address, along with the last location this device was at.
+ *
+ *  It's kept in its own shared preferences file, so after a restart the scanner has a location
+ *  right away instead of waiting for the next URL frame.
+ */
+public class BeaconLocationCache {
+
+    private static final String PREFERENCES_NAME = "BeaconLocations";
+    private static final String KEY_ADDRESS_PREFIX = "address:";
+    private static final String KEY_LAST_URL = "last_url";
+    private static final String KEY_LAST_TIME = "last_time";
+
+    // The last known location is only trusted for this long, in case the bin was moved
+    private static final long MAX_LAST_KNOWN_AGE_MS = 24 * 60 * 60 * 1000;
+
+    // Beacons we remember before starting over
+    private static final int MAX_ENTRIES = 256;
+
+    private static BeaconLocationCache sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, BeaconLocation> mLocations = new HashMap<>();
+
+    public static synchronized BeaconLocationCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new BeaconLocationCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BeaconLocationCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(KEY_ADDRESS_PREFIX) && entry.getValue() instanceof String) {
+                mLocations.put(key, BeaconLocation.parse((String) entry.getValue()));
+            }
+        }
+    }
+
+    @Nullable
+    synchronized BeaconLocation getByAddress(String address) {
+        return mLocations.get(KEY_ADDRESS_PREFIX + address);
+    }
+
+    /**
+     * @return the addresses of the beacons we know with URLs on hostName
+     */
+    synchronized List<String> getAddresses(String hostName) {
+        List<String> addresses = new ArrayList<>();
+        for (Map.Entry<String, BeaconLocation> entry : mLocations.entrySet()) {
+            if (entry.getValue().hasHost(hostName)) {
+                addresses.add(entry.getKey().substring(KEY_ADDRESS_PREFIX.length()));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Remembers where the beacon at address is.
+     *
+     * @return true if the address wasn't known before
+     */
+    synchronized boolean put(String address, BeaconLocation location) {
+        String key = KEY_ADDRESS_PREFIX + address;
+        BeaconLocation old = mLocations.get(key);
+        if (old != null && old.url.equals(location.url)) {
+            return false;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (old == null && mLocations.size() >= MAX_ENTRIES) {
+            for (String oldKey : mLocations.keySet()) {
+                editor.remove(oldKey);
+            }
+            mLocations.clear();
+        }
+        mLocations.put(key, location);
+        editor.putString(key, location.url);
+        editor.apply();
+        return old == null;
+    }
+
+    synchronized void setLastKnown(BeaconLocation location) {
+        mPrefs.edit()
+                .putString(KEY_LAST_URL, location.url)
+                .putLong(KEY_LAST_TIME, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * @return where this device was last, or null if that's unknown or too long ago
+     */
+    @Nullable
+    public synchronized BeaconLocation getLastKnown() {
+        String url = mPrefs.getString(KEY_LAST_URL, null);
+        long age = System.currentTimeMillis() - mPrefs.getLong(KEY_LAST_TIME, 0);
+        if (url == null || age < 0 || age > MAX_LAST_KNOWN_AGE_MS) {
+            return null;
+        }
+        return BeaconLocation.parse(url);
+    }
+}
@@ -0,0 +1,219 @@
+package com.divertsy.hid.ble;
+
+import java.util.Arrays;
+
+/**
+ *  BeaconTable tracks every advertiser we hear in flat arrays. The key is the Bluetooth
+ *  address packed into the low 48 bits of a long, stored with open addressing and linear
+ *  probing, and RSSI, last seen time and frame hashes sit in parallel arrays next to it.
+ *
+ *  Only beacons we care about (our host name, or everything in diagnostics mode) get a full
+ *  Beacon object. The rest of the building's advertisers cost a few array slots each.
+ *
+ *  Slots move when entries are removed or the table grows, so don't hold on to one across
+ *  an add() or remove().
+ */
+class BeaconTable {
+
+    static final long NO_ADDRESS = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mKeys;
+    private float[] mRssi;
+    private long[] mLastSeen;
+    private int[] mUidHash;
+    private int[] mUrlHash;
+    private Beacon[] mBeacons;
+    private int mSize;
+
+    BeaconTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the address "AA:BB:CC:DD:EE:FF" as a 48-bit number, or NO_ADDRESS if it
+     *         isn't in that form
+     */
+    static long packAddress(String address) {
+        if (address == null || address.length() != 17) {
+            return NO_ADDRESS;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return NO_ADDRESS;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return NO_ADDRESS;
+            }
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the slot for key, or -1 if it isn't in the table
+     */
+    int find(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != NO_ADDRESS) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a new advertiser, which must not be in the table yet.
+     *
+     * @return its slot
+     */
+    int add(long key, int rssi, long now) {
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != NO_ADDRESS) {
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mRssi[slot] = rssi;
+        mLastSeen[slot] = now;
+        mUidHash[slot] = 0;
+        mUrlHash[slot] = 0;
+        mBeacons[slot] = null;
+        mSize++;
+        return slot;
+    }
+
+    // Another advertisement from the beacon in slot
+    void seen(int slot, int rssi, long now) {
+        mRssi[slot] += Beacon.RSSI_SMOOTHING * (rssi - mRssi[slot]);
+        mLastSeen[slot] = now;
+    }
+
+    float getSmoothedRssi(int slot) {
+        return mRssi[slot];
+    }
+
+    long getLastSeen(int slot) {
+        return mLastSeen[slot];
+    }
+
+    int getUidHash(int slot) {
+        return mUidHash[slot];
+    }
+
+    void setUidHash(int slot, int hash) {
+        mUidHash[slot] = hash;
+    }
+
+    int getUrlHash(int slot) {
+        return mUrlHash[slot];
+    }
+
+    void setUrlHash(int slot, int hash) {
+        mUrlHash[slot] = hash;
+    }
+
+    Beacon getBeacon(int slot) {
+        return mBeacons[slot];
+    }
+
+    void setBeacon(int slot, Beacon beacon) {
+        mBeacons[slot] = beacon;
+    }
+
+    /**
+     * Removes the entry in slot, moving back later entries of the same probe run so lookups
+     * never need tombstones.
+     *
+     * @return the Beacon object that was kept for it, if any
+     */
+    Beacon remove(int slot) {
+        Beacon removed = mBeacons[slot];
+        int mask = mKeys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != NO_ADDRESS) {
+            int home = hash(mKeys[next]) & mask;
+            // Move the entry into the hole unless its home slot lies after the hole
+            // (going round the probe run from next back to the hole)
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[hole] = NO_ADDRESS;
+        mBeacons[hole] = null;
+        mSize--;
+        return removed;
+    }
+
+    void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void move(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mRssi[to] = mRssi[from];
+        mLastSeen[to] = mLastSeen[from];
+        mUidHash[to] = mUidHash[from];
+        mUrlHash[to] = mUrlHash[from];
+        mBeacons[to] = mBeacons[from];
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        float[] rssi = mRssi;
+        long[] lastSeen = mLastSeen;
+        int[] uidHash = mUidHash;
+        int[] urlHash = mUrlHash;
+        Beacon[] beacons = mBeacons;
+
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != NO_ADDRESS) {
+                int slot = add(keys[i], 0, lastSeen[i]);
+                mRssi[slot] = rssi[i];
+                mUidHash[slot] = uidHash[i];
+                mUrlHash[slot] = urlHash[i];
+                mBeacons[slot] = beacons[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, NO_ADDRESS);
+        mRssi = new float[capacity];
+        mLastSeen = new long[capacity];
+        mUidHash = new int[capacity];
+        mUrlHash = new int[capacity];
+        mBeacons = new Beacon[capacity];
+        mSize = 0;
+    }
+
+    // Addresses from one vendor share their top bytes, so mix all the bits down
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
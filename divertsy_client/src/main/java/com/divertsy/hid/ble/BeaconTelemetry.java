@@ -0,0 +1,308 @@
+package com.divertsy.hid.ble;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  BeaconTelemetry keeps the battery voltage, temperature and counters from our beacons' TLM
+ *  frames, so a beacon running down shows up in the data before location tagging stops working.
+ *
+ *  Readings are folded into one min/max/avg bucket per hour as they arrive, in a ring of HOURS
+ *  buckets per beacon held in primitive arrays. The whole series can be written out as a CSV
+ *  next to the weight log.
+ *
+ *  Only used on the BLEScanner worker thread.
+ */
+class BeaconTelemetry {
+
+    private static final String TAG = "BeaconTelemetry";
+
+    // One week of hourly buckets per beacon
+    static final int HOURS = 24 * 7;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    // Beacons we keep series for, the one heard from longest ago is dropped past this
+    private static final int MAX_BEACONS = 64;
+
+    private static final int MIN_TLM_LENGTH = 14;
+    private static final float TEMPERATURE_NOT_SUPPORTED = TlmValidator.TEMPERATURE_NOT_SUPPORTED;
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    static final String[] CSV_HEADERS = {"hour", "address", "url", "samples",
+            "voltage_min", "voltage_max", "voltage_avg", "temp_min", "temp_max", "temp_avg",
+            "adv_count", "uptime_seconds"};
+
+    private static class Series {
+        final String address;
+        String url;
+        long lastHour;
+
+        // Bucket i holds hour number hour[i] (hours since the epoch), 0 if it's empty
+        final long[] hour = new long[HOURS];
+        final int[] samples = new int[HOURS];
+        final int[] voltageMin = new int[HOURS];
+        final int[] voltageMax = new int[HOURS];
+        final long[] voltageSum = new long[HOURS];
+        final int[] tempSamples = new int[HOURS];
+        final float[] tempMin = new float[HOURS];
+        final float[] tempMax = new float[HOURS];
+        final double[] tempSum = new double[HOURS];
+        // Counters only go up, so the last one in the hour is enough
+        final long[] advCount = new long[HOURS];
+        final long[] uptime = new long[HOURS];
+
+        Series(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Map<String, Series> mSeries = new HashMap<>();
+
+    // The hour add() last asked for an export in, so that's once an hour for all beacons
+    private long mLastExportHour = System.currentTimeMillis() / HOUR_MS;
+
+    /**
+     * Adds the TLM frame of length bytes at offset in record.
+     *
+     * @return true for the first frame of a new hour from any beacon, a good time to export
+     */
+    boolean add(String address, String url, byte[] record, int offset, int length, long now) {
+        if (length < MIN_TLM_LENGTH || record[offset + 1] != TlmValidator.EXPECTED_VERSION) {
+            return false;
+        }
+        int voltage = readUnsignedShort(record, offset + 2);
+        float temp = record[offset + 4] + ((record[offset + 5] & 0xFF) / 256.0f);
+        long advCount = readUnsignedInt(record, offset + 6);
+        long uptime = readUnsignedInt(record, offset + 10);
+
+        Series series = mSeries.get(address);
+        if (series == null) {
+            if (mSeries.size() >= MAX_BEACONS) {
+                dropOldest();
+            }
+            series = new Series(address);
+            mSeries.put(address, series);
+        }
+        if (url != null) {
+            series.url = url;
+        }
+
+        long hour = now / HOUR_MS;
+        int i = (int) (hour % HOURS);
+        boolean newHour = series.hour[i] != hour;
+        if (newHour) {
+            series.hour[i] = hour;
+            series.samples[i] = 0;
+            series.voltageSum[i] = 0;
+            series.tempSamples[i] = 0;
+            series.tempSum[i] = 0;
+        }
+        series.lastHour = hour;
+        boolean export = hour > mLastExportHour;
+        if (export) {
+            mLastExportHour = hour;
+        }
+
+        if (series.samples[i] == 0 || voltage < series.voltageMin[i]) {
+            series.voltageMin[i] = voltage;
+        }
+        if (series.samples[i] == 0 || voltage > series.voltageMax[i]) {
+            series.voltageMax[i] = voltage;
+        }
+        series.voltageSum[i] += voltage;
+        series.samples[i]++;
+
+        if (temp != TEMPERATURE_NOT_SUPPORTED) {
+            if (series.tempSamples[i] == 0 || temp < series.tempMin[i]) {
+                series.tempMin[i] = temp;
+            }
+            if (series.tempSamples[i] == 0 || temp > series.tempMax[i]) {
+                series.tempMax[i] = temp;
+            }
+            series.tempSum[i] += temp;
+            series.tempSamples[i]++;
+        }
+        series.advCount[i] = advCount;
+        series.uptime[i] = uptime;
+        return export;
+    }
+
+    boolean isEmpty() {
+        return mSeries.isEmpty();
+    }
+
+    /**
+     * Writes every hour we have as CSV, oldest first for each beacon. The file is written
+     * next to path and then renamed, so anyone reading it never sees half of it.
+     */
+    void export(String path) {
+        File file = new File(path);
+        File temp = new File(path + ".tmp");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(temp);
+            writeCsv(writer);
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Could not replace " + path);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Beacon telemetry export failed: " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads back a CSV written by export(), so restarting the app doesn't lose the history.
+     * Rows that don't parse are skipped.
+     */
+    void load(String path) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(path));
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                try {
+                    loadRow(line.split(",", -1), format);
+                } catch (ParseException | NumberFormatException e) {
+                    Log.w(TAG, "Skipping telemetry row: " + line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Beacon telemetry load failed: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void loadRow(String[] cols, SimpleDateFormat format) throws ParseException {
+        if (cols.length != CSV_HEADERS.length) {
+            return;
+        }
+        long hour = format.parse(cols[0]).getTime() / HOUR_MS;
+        String address = cols[1];
+        Series series = mSeries.get(address);
+        if (series == null) {
+            if (mSeries.size() >= MAX_BEACONS) {
+                return;
+            }
+            series = new Series(address);
+            mSeries.put(address, series);
+        }
+        if (cols[2].length() > 0) {
+            series.url = cols[2];
+        }
+        int i = (int) (hour % HOURS);
+        series.hour[i] = hour;
+        series.lastHour = Math.max(series.lastHour, hour);
+        series.samples[i] = Integer.parseInt(cols[3]);
+        series.voltageMin[i] = Integer.parseInt(cols[4]);
+        series.voltageMax[i] = Integer.parseInt(cols[5]);
+        series.voltageSum[i] = Long.parseLong(cols[6]) * series.samples[i];
+        if (cols[7].length() > 0) {
+            series.tempSamples[i] = series.samples[i];
+            series.tempMin[i] = Float.parseFloat(cols[7]);
+            series.tempMax[i] = Float.parseFloat(cols[8]);
+            series.tempSum[i] = Double.parseDouble(cols[9]) * series.samples[i];
+        } else {
+            series.tempSamples[i] = 0;
+        }
+        series.advCount[i] = Long.parseLong(cols[10]);
+        series.uptime[i] = Long.parseLong(cols[11]) * 10;
+    }
+
+    void writeCsv(Writer out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+        String newline = System.getProperty("line.separator");
+        out.write(TextUtils.join(",", CSV_HEADERS));
+        out.write(newline);
+
+        List<String> addresses = new ArrayList<>(mSeries.keySet());
+        Collections.sort(addresses);
+        StringBuilder row = new StringBuilder();
+        for (String address : addresses) {
+            Series series = mSeries.get(address);
+            // The ring starts just after the latest hour
+            for (int n = 1; n <= HOURS; n++) {
+                int i = (int) ((series.lastHour + n) % HOURS);
+                if (series.hour[i] == 0 || series.samples[i] == 0
+                        || series.lastHour - series.hour[i] >= HOURS) {
+                    continue;
+                }
+                row.setLength(0);
+                row.append(format.format(new Date(series.hour[i] * HOUR_MS))).append(',');
+                row.append(series.address).append(',');
+                row.append(series.url == null ? "" : series.url).append(',');
+                row.append(series.samples[i]).append(',');
+                row.append(series.voltageMin[i]).append(',');
+                row.append(series.voltageMax[i]).append(',');
+                row.append(series.voltageSum[i] / series.samples[i]).append(',');
+                if (series.tempSamples[i] > 0) {
+                    row.append(series.tempMin[i]).append(',');
+                    row.append(series.tempMax[i]).append(',');
+                    row.append(String.format(Locale.US, "%.2f", series.tempSum[i] / series.tempSamples[i]));
+                } else {
+                    row.append(",,");
+                }
+                row.append(',').append(series.advCount[i]);
+                row.append(',').append(series.uptime[i] / 10);
+                out.write(row.toString());
+                out.write(newline);
+            }
+        }
+    }
+
+    private void dropOldest() {
+        Series oldest = null;
+        for (Series series : mSeries.values()) {
+            if (oldest == null || series.lastHour < oldest.lastHour) {
+                oldest = series;
+            }
+        }
+        if (oldest != null) {
+            mSeries.remove(oldest.address);
+        }
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static long readUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
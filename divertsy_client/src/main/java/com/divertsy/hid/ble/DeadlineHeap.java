@@ -0,0 +1,75 @@
+package com.divertsy.hid.ble;
+
+/**
+ * A binary min-heap of (deadline, key) pairs kept in two long arrays, so adding and expiring
+ * beacons doesn't create any objects.
+ */
+class DeadlineHeap {
+
+    private long[] mDeadlines = new long[64];
+    private long[] mKeys = new long[64];
+    private int mSize;
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    long peekDeadline() {
+        return mDeadlines[0];
+    }
+
+    long peekKey() {
+        return mKeys[0];
+    }
+
+    void push(long deadline, long key) {
+        if (mSize == mDeadlines.length) {
+            long[] deadlines = new long[mSize * 2];
+            long[] keys = new long[mSize * 2];
+            System.arraycopy(mDeadlines, 0, deadlines, 0, mSize);
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            mDeadlines = deadlines;
+            mKeys = keys;
+        }
+        int i = mSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mDeadlines[parent] <= deadline) {
+                break;
+            }
+            mDeadlines[i] = mDeadlines[parent];
+            mKeys[i] = mKeys[parent];
+            i = parent;
+        }
+        mDeadlines[i] = deadline;
+        mKeys[i] = key;
+    }
+
+    // Removes the soonest entry, read it with peekDeadline() and peekKey() first
+    void pop() {
+        mSize--;
+        if (mSize == 0) {
+            return;
+        }
+        long deadline = mDeadlines[mSize];
+        long key = mKeys[mSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= mSize) {
+                break;
+            }
+            if (child + 1 < mSize && mDeadlines[child + 1] < mDeadlines[child]) {
+                child++;
+            }
+            if (deadline <= mDeadlines[child]) {
+                break;
+            }
+            mDeadlines[i] = mDeadlines[child];
+            mKeys[i] = mKeys[child];
+            i = child;
+        }
+        mDeadlines[i] = deadline;
+        mKeys[i] = key;
+    }
+}
@@ -0,0 +1,60 @@
+package com.divertsy.hid.ble;
+
+/**
+ * Finds and hashes Eddystone frames in place in the raw advertisement bytes, so the common
+ * case of a beacon repeating its last frame costs a pass over its bytes and no copies.
+ */
+class EddystoneFrames {
+
+    // AD type for 16-bit UUID service data
+    private static final int AD_SERVICE_DATA_16 = 0x16;
+
+    // The Eddystone service UUID 0xFEAA, in advertisement (little endian) order
+    private static final byte EDDYSTONE_UUID_LOW = (byte) 0xAA;
+    private static final byte EDDYSTONE_UUID_HIGH = (byte) 0xFE;
+
+    private EddystoneFrames() {
+    }
+
+    /**
+     * @return the offset of the Eddystone frame type byte in record, or -1 if there's none
+     */
+    static int findServiceData(byte[] record) {
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if (i + length >= record.length) {
+                return -1;
+            }
+            if ((record[i + 1] & 0xFF) == AD_SERVICE_DATA_16 && length > 3
+                    && record[i + 2] == EDDYSTONE_UUID_LOW && record[i + 3] == EDDYSTONE_UUID_HIGH) {
+                return i + 4;
+            }
+            i += length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param offset as returned by findServiceData
+     * @return how many bytes the Eddystone frame at offset has
+     */
+    static int getServiceDataLength(byte[] record, int offset) {
+        return (record[offset - 4] & 0xFF) - 3;
+    }
+
+    /**
+     * @return a hash of the length bytes at offset in record, never 0 so that 0 can mean
+     *         "no frame yet"
+     */
+    static int hash(byte[] record, int offset, int length) {
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + record[i];
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
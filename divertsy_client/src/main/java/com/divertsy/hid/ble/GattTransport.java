@@ -0,0 +1,39 @@
+package com.divertsy.hid.ble;
+
+import java.util.UUID;
+
+/**
+ *  GattTransport is the link to one GATT peripheral that WeightScaleClient talks through.
+ *  AndroidGattTransport is the real one, and a fake peer can stand in for it to drive the
+ *  client without a scale.
+ *
+ *  Callbacks can come on any thread.
+ */
+public interface GattTransport {
+
+    interface Callback {
+        // Connected and the peer's services have been discovered
+        void onReady();
+
+        // Lost the link. The transport keeps trying to get it back until close()
+        void onDisconnected();
+
+        void onNotification(UUID service, UUID characteristic, byte[] value);
+    }
+
+    /**
+     * Connects to the peer at address, and reconnects whenever it comes back in range until
+     * close() is called. Connecting to another address closes the current link first.
+     */
+    void connect(String address, Callback callback);
+
+    /**
+     * Turns on notifications or indications, whichever the characteristic supports. Call
+     * this again after each onReady(), peers forget subscriptions when the link drops.
+     *
+     * @return false if the peer doesn't have the characteristic or the request failed
+     */
+    boolean subscribe(UUID service, UUID characteristic);
+
+    void close();
+}
@@ -0,0 +1,160 @@
+package com.divertsy.hid.ble;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *  ScaleTracker keeps state for every advertising scale in range and picks the one this station
+ *  listens to, so two scales side by side don't take turns on the display.
+ *
+ *  Policies:
+ *   nearest - the scale with the strongest smoothed RSSI, with some hysteresis
+ *   recent  - the scale whose weight changed last, which is the one someone is using
+ *   pinned  - only the scale with the configured address
+ *
+ *  Only used on the BLEScanner worker thread.
+ */
+class ScaleTracker {
+
+    private static final String TAG = "ScaleTracker";
+
+    static final int POLICY_NEAREST = 0;
+    static final int POLICY_RECENT = 1;
+    static final int POLICY_PINNED = 2;
+
+    // A scale not heard from for this long can't be selected, and is dropped later
+    private static final long STALE_MS = 5000;
+    private static final long FORGET_MS = 60000;
+
+    // How much stronger another scale must be before the nearest policy switches to it
+    private static final double NEAREST_HYSTERESIS_DB = 6.0;
+
+    static class ScaleState {
+        final String address;
+        String name;
+        double smoothedRssi;
+        double weight;
+        String unit;
+        long lastSeen;
+        long lastChange;
+
+        ScaleState(String address, int rssi) {
+            this.address = address;
+            this.smoothedRssi = rssi;
+        }
+    }
+
+    private final Map<String, ScaleState> mScales = new HashMap<>();
+    private ScaleState mSelected;
+    private int mPolicy = POLICY_NEAREST;
+    private String mPinnedAddress;
+
+    /**
+     * @param policy "nearest", "recent" or "pinned", anything else is nearest
+     */
+    static int parsePolicy(String policy) {
+        if ("recent".equals(policy)) {
+            return POLICY_RECENT;
+        }
+        if ("pinned".equals(policy)) {
+            return POLICY_PINNED;
+        }
+        return POLICY_NEAREST;
+    }
+
+    void setPolicy(int policy, String pinnedAddress) {
+        mPolicy = policy;
+        mPinnedAddress = pinnedAddress == null ? null : pinnedAddress.trim();
+        mSelected = null;
+    }
+
+    /**
+     * Another advertisement from the scale at address, with or without a new reading.
+     */
+    void seen(String address, int rssi, long now) {
+        ScaleState state = getState(address, rssi, now);
+        state.smoothedRssi += Beacon.RSSI_SMOOTHING * (rssi - state.smoothedRssi);
+        state.lastSeen = now;
+    }
+
+    /**
+     * Records a decoded reading. seen() must be called for the same advertisement first.
+     *
+     * @return true if address is the selected scale, so the reading should be shown
+     */
+    boolean onReading(String address, String name, double weight, String unit, long now) {
+        ScaleState state = mScales.get(address);
+        if (state == null) {
+            return false;
+        }
+        if (state.unit == null || state.weight != weight || !state.unit.equals(unit)) {
+            state.lastChange = now;
+        }
+        state.name = name;
+        state.weight = weight;
+        state.unit = unit;
+
+        ScaleState selected = select(now);
+        if (selected != mSelected) {
+            Log.d(TAG, "Listening to scale " + (selected == null ? "none" : selected.address));
+            mSelected = selected;
+        }
+        return selected == state;
+    }
+
+    private ScaleState select(long now) {
+        if (mPolicy == POLICY_PINNED && mPinnedAddress != null && mPinnedAddress.length() > 0) {
+            for (ScaleState state : mScales.values()) {
+                if (state.address.equalsIgnoreCase(mPinnedAddress)) {
+                    return state;
+                }
+            }
+            return null;
+        }
+
+        ScaleState current = mSelected != null && now - mSelected.lastSeen < STALE_MS
+                && mScales.get(mSelected.address) == mSelected ? mSelected : null;
+        ScaleState best = current;
+        for (ScaleState state : mScales.values()) {
+            if (state == current || now - state.lastSeen >= STALE_MS || state.unit == null) {
+                continue;
+            }
+            if (best == null) {
+                best = state;
+            } else if (mPolicy == POLICY_RECENT) {
+                if (state.lastChange > best.lastChange) {
+                    best = state;
+                }
+            } else {
+                double margin = best == current ? NEAREST_HYSTERESIS_DB : 0;
+                if (state.smoothedRssi > best.smoothedRssi + margin) {
+                    best = state;
+                }
+            }
+        }
+        return best;
+    }
+
+    private ScaleState getState(String address, int rssi, long now) {
+        ScaleState state = mScales.get(address);
+        if (state == null) {
+            forgetOldScales(now);
+            state = new ScaleState(address, rssi);
+            mScales.put(address, state);
+        }
+        return state;
+    }
+
+    private void forgetOldScales(long now) {
+        Iterator<ScaleState> it = mScales.values().iterator();
+        while (it.hasNext()) {
+            ScaleState state = it.next();
+            if (now - state.lastSeen > FORGET_MS && state != mSelected) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.divertsy.hid.ble;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  UidLocationTable maps Eddystone UIDs to floors and places, for beacons set up to send UID
+ *  frames instead of http://HAX/floor/place URLs. That leaves place names free of the URL
+ *  frame's length limit.
+ *
+ *  The table comes from a CSV file in the sync folder, one beacon per line:
+ *
+ *      namespace,instance,floor,place
+ *
+ *  with the 10 byte namespace and 6 byte instance in hex. Lines starting with # are skipped.
+ *
+ *  The 16 UID bytes are held as two longs in open addressed arrays, so a lookup straight from
+ *  the frame bytes is a hash probe with no allocation. A table is never changed after load().
+ */
+class UidLocationTable {
+
+    private static final String TAG = "UidLocationTable";
+
+    static final int UID_LENGTH = 16;
+    static final int NAMESPACE_LENGTH = 10;
+    private static final int INSTANCE_LENGTH = 6;
+
+    private final long[] mHigh;
+    private final long[] mLow;
+    private final BeaconLocation[] mLocations;
+    private final List<byte[]> mNamespaces = new ArrayList<>();
+
+    private UidLocationTable(int entries) {
+        int capacity = 16;
+        while (capacity < entries * 2) {
+            capacity *= 2;
+        }
+        mHigh = new long[capacity];
+        mLow = new long[capacity];
+        mLocations = new BeaconLocation[capacity];
+    }
+
+    /**
+     * Reads the table from file. Lines that don't parse are logged and skipped.
+     */
+    static UidLocationTable load(File file) throws IOException {
+        List<byte[]> uids = new ArrayList<>();
+        List<BeaconLocation> locations = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cols = line.split(",");
+                byte[] uid = cols.length == 4 ? parseUid(cols[0].trim(), cols[1].trim()) : null;
+                if (uid == null || cols[2].trim().length() == 0 || cols[3].trim().length() == 0) {
+                    Log.w(TAG, "Skipping beacon location line: " + line);
+                    continue;
+                }
+                uids.add(uid);
+                locations.add(BeaconLocation.of(cols[2].trim(), cols[3].trim()));
+            }
+        } finally {
+            reader.close();
+        }
+
+        UidLocationTable table = new UidLocationTable(uids.size());
+        for (int i = 0; i < uids.size(); i++) {
+            table.put(uids.get(i), locations.get(i));
+        }
+        Log.d(TAG, "Loaded " + uids.size() + " beacon locations");
+        return table;
+    }
+
+    /**
+     * @param offset where the 16 UID bytes start in data
+     * @return the location for that UID, or null if it isn't in the table
+     */
+    @Nullable
+    BeaconLocation get(byte[] data, int offset) {
+        long high = readLong(data, offset);
+        long low = readLong(data, offset + 8);
+        int mask = mLocations.length - 1;
+        int slot = hash(high, low) & mask;
+        while (mLocations[slot] != null) {
+            if (mHigh[slot] == high && mLow[slot] == low) {
+                return mLocations[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return every namespace in the table, each once
+     */
+    List<byte[]> getNamespaces() {
+        return mNamespaces;
+    }
+
+    private void put(byte[] uid, BeaconLocation location) {
+        long high = readLong(uid, 0);
+        long low = readLong(uid, 8);
+        int mask = mLocations.length - 1;
+        int slot = hash(high, low) & mask;
+        while (mLocations[slot] != null) {
+            if (mHigh[slot] == high && mLow[slot] == low) {
+                // A later line for the same beacon wins
+                mLocations[slot] = location;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mHigh[slot] = high;
+        mLow[slot] = low;
+        mLocations[slot] = location;
+        addNamespace(uid);
+    }
+
+    private void addNamespace(byte[] uid) {
+        for (byte[] namespace : mNamespaces) {
+            boolean same = true;
+            for (int i = 0; i < NAMESPACE_LENGTH && same; i++) {
+                same = namespace[i] == uid[i];
+            }
+            if (same) {
+                return;
+            }
+        }
+        byte[] namespace = new byte[NAMESPACE_LENGTH];
+        System.arraycopy(uid, 0, namespace, 0, NAMESPACE_LENGTH);
+        mNamespaces.add(namespace);
+    }
+
+    @Nullable
+    private static byte[] parseUid(String namespace, String instance) {
+        if (namespace.length() != NAMESPACE_LENGTH * 2 || instance.length() != INSTANCE_LENGTH * 2) {
+            return null;
+        }
+        byte[] uid = new byte[UID_LENGTH];
+        String hex = namespace + instance;
+        for (int i = 0; i < UID_LENGTH; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            uid[i] = (byte) ((hi << 4) | lo);
+        }
+        return uid;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int hash(long high, long low) {
+        long key = high * 31 + low;
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
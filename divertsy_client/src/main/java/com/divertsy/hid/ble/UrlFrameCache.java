@@ -0,0 +1,57 @@
+package com.divertsy.hid.ble;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ *  UrlFrameCache remembers the decoded URL and location for recently seen Eddystone URL
+ *  frames, keyed by a hash of the frame bytes. A beacon's URL almost never changes, so nearly
+ *  every frame is a hit, which costs a byte comparison instead of a decode and a parse.
+ *
+ *  It's direct mapped: each hash has one slot, and a new frame in the same slot replaces the
+ *  old one. The frame bytes are kept and compared, so a hash collision can't return the wrong
+ *  location.
+ *
+ *  Only used on the BLEScanner worker thread.
+ */
+class UrlFrameCache {
+
+    private static final int SIZE = 64;
+
+    private final int[] mHashes = new int[SIZE];
+    private final byte[][] mFrames = new byte[SIZE][];
+    private final BeaconLocation[] mLocations = new BeaconLocation[SIZE];
+
+    /**
+     * @param hash EddystoneFrames.hash() of the frame
+     * @return the location in the URL frame of length bytes at offset in record, or null if
+     *         the URL can't be decoded
+     */
+    @Nullable
+    BeaconLocation get(byte[] record, int offset, int length, int hash) {
+        int slot = hash & (SIZE - 1);
+        byte[] frame = mFrames[slot];
+        if (frame != null && mHashes[slot] == hash && frame.length == length
+                && sameBytes(frame, record, offset)) {
+            return mLocations[slot];
+        }
+
+        frame = Arrays.copyOfRange(record, offset, offset + length);
+        String url = UrlUtils.decodeUrl(frame);
+        BeaconLocation location = url == null ? null : BeaconLocation.parse(url);
+        mHashes[slot] = hash;
+        mFrames[slot] = frame;
+        mLocations[slot] = location;
+        return location;
+    }
+
+    private static boolean sameBytes(byte[] frame, byte[] record, int offset) {
+        for (int i = frame.length - 1; i >= 0; i--) {
+            if (frame[i] != record[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
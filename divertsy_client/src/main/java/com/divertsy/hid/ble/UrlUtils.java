@@ -15,7 +15,6 @@
 package com.divertsy.hid.ble;
 
 import android.util.Log;
-import android.util.SparseArray;
 import android.webkit.URLUtil;
 
 import java.nio.BufferUnderflowException;
@@ -30,36 +29,38 @@ import java.util.UUID;
 public class UrlUtils {
     private static final String TAG = UrlUtils.class.getSimpleName();
 
-    private static final SparseArray<String> URI_SCHEMES = new SparseArray<String>() {{
-        put((byte) 0, "http://www.");
-        put((byte) 1, "https://www.");
-        put((byte) 2, "http://");
-        put((byte) 3, "https://");
-        put((byte) 4, "urn:uuid:");
-    }};
+    // Expansion codes indexed by the unsigned byte value, null where the byte is itself
+    private static final String[] URI_SCHEMES = new String[256];
+    private static final String[] URL_CODES = new String[256];
 
-    private static final SparseArray<String> URL_CODES = new SparseArray<String>() {{
-        put((byte) 0, ".com/");
-        put((byte) 1, ".org/");
-        put((byte) 2, ".edu/");
-        put((byte) 3, ".net/");
-        put((byte) 4, ".info/");
-        put((byte) 5, ".biz/");
-        put((byte) 6, ".gov/");
-        put((byte) 7, ".com");
-        put((byte) 8, ".org");
-        put((byte) 9, ".edu");
-        put((byte) 10, ".net");
-        put((byte) 11, ".info");
-        put((byte) 12, ".biz");
-        put((byte) 13, ".gov");
-    }};
+    static {
+        URI_SCHEMES[0] = "http://www.";
+        URI_SCHEMES[1] = "https://www.";
+        URI_SCHEMES[2] = "http://";
+        URI_SCHEMES[3] = "https://";
+        URI_SCHEMES[4] = "urn:uuid:";
+
+        URL_CODES[0] = ".com/";
+        URL_CODES[1] = ".org/";
+        URL_CODES[2] = ".edu/";
+        URL_CODES[3] = ".net/";
+        URL_CODES[4] = ".info/";
+        URL_CODES[5] = ".biz/";
+        URL_CODES[6] = ".gov/";
+        URL_CODES[7] = ".com";
+        URL_CODES[8] = ".org";
+        URL_CODES[9] = ".edu";
+        URL_CODES[10] = ".net";
+        URL_CODES[11] = ".info";
+        URL_CODES[12] = ".biz";
+        URL_CODES[13] = ".gov";
+    }
 
     static String decodeUrl(byte[] serviceData) {
         StringBuilder url = new StringBuilder();
         int offset = 2;
         byte b = serviceData[offset++];
-        String scheme = URI_SCHEMES.get(b);
+        String scheme = URI_SCHEMES[b & 0xFF];
         if (scheme != null) {
             url.append(scheme);
             if (URLUtil.isNetworkUrl(scheme)) {
@@ -74,7 +75,7 @@ public class UrlUtils {
     static String decodeUrl(byte[] serviceData, int offset, StringBuilder urlBuilder) {
         while (offset < serviceData.length) {
             byte b = serviceData[offset++];
-            String code = URL_CODES.get(b);
+            String code = URL_CODES[b & 0xFF];
             if (code != null) {
                 urlBuilder.append(code);
             } else {
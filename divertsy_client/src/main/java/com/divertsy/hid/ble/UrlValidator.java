@@ -14,6 +14,7 @@
 
 package com.divertsy.hid.ble;
 
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.divertsy.hid.utils.Utils;
@@ -50,7 +51,32 @@ public class UrlValidator {
             logDeviceError(deviceAddress, err);
         }
 
-        beacon.urlStatus.urlValue = UrlUtils.decodeUrl(serviceData);
+        readUrl(serviceData, 0, serviceData.length, beacon);
+    }
+
+    // Decoded URL frames shared by every beacon, only touched on the BLEScanner worker thread
+    private static final UrlFrameCache sUrlFrames = new UrlFrameCache();
+
+    /**
+     * Looks up the URL frame of length bytes at offset in record, decoding it only if it isn't
+     * cached, and sets the beacon's location.
+     */
+    static void readUrl(byte[] record, int offset, int length, Beacon beacon) {
+        setLocation(beacon, getLocation(record, offset, length,
+                EddystoneFrames.hash(record, offset, length)));
+    }
+
+    /**
+     * @param hash EddystoneFrames.hash() of the frame, which the scanner already has
+     */
+    @Nullable
+    static BeaconLocation getLocation(byte[] record, int offset, int length, int hash) {
+        return sUrlFrames.get(record, offset, length, hash);
+    }
+
+    static void setLocation(Beacon beacon, @Nullable BeaconLocation location) {
+        beacon.location = location;
+        beacon.urlStatus.urlValue = location == null ? null : location.url;
     }
 
     private static void logDeviceError(String deviceAddress, String err) {
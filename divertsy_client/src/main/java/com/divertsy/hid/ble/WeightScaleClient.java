@@ -0,0 +1,121 @@
+package com.divertsy.hid.ble;
+
+import android.util.Log;
+
+import com.divertsy.hid.scale.ScaleSourceBus;
+
+import java.util.UUID;
+
+/**
+ *  WeightScaleClient reads scales that have the standard Bluetooth Weight Scale Service.
+ *
+ *  Rather than waiting for the next advertisement, it stays connected to the scale, which
+ *  sends each Weight Measurement as soon as it has one. The link is kept between weigh-ins.
+ *  Readings go to ScaleSourceBus as SOURCE_BLE, the same as advertising scales.
+ */
+public class WeightScaleClient implements GattTransport.Callback {
+
+    private static final String TAG = "WeightScaleClient";
+
+    static final UUID WEIGHT_SCALE_SERVICE = UUID.fromString("0000181d-0000-1000-8000-00805f9b34fb");
+    static final UUID WEIGHT_MEASUREMENT = UUID.fromString("00002a9d-0000-1000-8000-00805f9b34fb");
+
+    // Weight Measurement flags bit for pounds instead of kilograms
+    private static final int FLAG_IMPERIAL = 0x01;
+    // Weight value the scale sends when a measurement failed
+    private static final int MEASUREMENT_UNSUCCESSFUL = 0xFFFF;
+
+    private final GattTransport mTransport;
+    private final Runnable mOnReading;
+    private String mAddress;
+    private String mName;
+
+    /**
+     * @param onReading run after each reading is published, on the transport's thread
+     */
+    public WeightScaleClient(GattTransport transport, Runnable onReading) {
+        mTransport = transport;
+        mOnReading = onReading;
+    }
+
+    public synchronized boolean hasScale() {
+        return mAddress != null;
+    }
+
+    /**
+     * Starts talking to the scale at address, replacing any scale we had.
+     */
+    public synchronized void connect(String address, String name) {
+        if (address.equals(mAddress)) {
+            return;
+        }
+        Log.d(TAG, "Connecting to weight scale " + name + " " + address);
+        mAddress = address;
+        mName = name;
+        mTransport.connect(address, this);
+    }
+
+    public synchronized void close() {
+        mTransport.close();
+        mAddress = null;
+    }
+
+    @Override
+    public void onReady() {
+        if (!mTransport.subscribe(WEIGHT_SCALE_SERVICE, WEIGHT_MEASUREMENT)) {
+            Log.w(TAG, "Could not subscribe to weight measurements");
+        }
+    }
+
+    @Override
+    public void onDisconnected() {
+        Log.d(TAG, "Weight scale out of range, waiting for it to come back");
+    }
+
+    @Override
+    public void onNotification(UUID service, UUID characteristic, byte[] value) {
+        if (!WEIGHT_MEASUREMENT.equals(characteristic)) {
+            return;
+        }
+        double weight = parseWeight(value);
+        if (Double.isNaN(weight)) {
+            return;
+        }
+        String unit = parseUnit(value);
+        String name;
+        synchronized (this) {
+            name = mName;
+        }
+        Log.d(TAG, "Weight: " + weight + " Unit: " + unit);
+        ScaleSourceBus.get().publish(ScaleSourceBus.SOURCE_BLE, weight, unit, name);
+        mOnReading.run();
+    }
+
+    /**
+     * A Weight Measurement value starts with a flags byte and then the weight as a little
+     * endian uint16, in 0.005 kg or 0.01 lb steps. Time stamp, user ID and BMI may follow,
+     * we don't need them.
+     *
+     * @return the weight, or NaN if the value is too short or the measurement failed
+     */
+    static double parseWeight(byte[] value) {
+        if (value == null || value.length < 3) {
+            return Double.NaN;
+        }
+        int raw = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+        if (raw == MEASUREMENT_UNSUCCESSFUL) {
+            return Double.NaN;
+        }
+        if ((value[0] & FLAG_IMPERIAL) != 0) {
+            return raw / 100.0;
+        }
+        return raw * 5 / 1000.0;
+    }
+
+    static String parseUnit(byte[] value) {
+        if ((value[0] & FLAG_IMPERIAL) != 0) {
+            return WitScaleDecoder.getUnitName(WitScaleDecoder.UNIT_LBS);
+        }
+        return WitScaleDecoder.getUnitName(WitScaleDecoder.UNIT_KG);
+    }
+}
@@ -0,0 +1,170 @@
+package com.divertsy.hid.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  WitScaleDecoder reads the weight out of WIT Traveller scale advertisements.
+ *
+ *  The weight is sent as 6 BCD digits in bytes 22 to 24, each byte XOR'd with byte 22, and the
+ *  unit and sign are in byte 21. The digits are turned straight into a fixed point number of
+ *  hundredths, and nothing is decoded again while a scale keeps sending the same bytes.
+ */
+public class WitScaleDecoder {
+
+    public static final int UNIT_KG = 0x00;
+    public static final int UNIT_LBS = 0x01;
+    public static final int UNIT_G = 0x03;
+    public static final int UNIT_OZ = 0x08;
+    public static final int UNIT_UNKNOWN = -1;
+
+    // decode() results
+    public static final int NOT_A_SCALE = 0;
+    public static final int UNCHANGED = 1;
+    public static final int WEIGHT = 2;
+
+    // scanRecords appear to be 62 bytes, but useful data is located before that.
+    // set the min record length to the max array value we'll be pulling
+    private static final int MIN_RECORD_LENGTH = 25;
+
+    // Send an unchanged weight again this often, so the display doesn't time out on a steady scale
+    static final long REPEAT_MS = 1000;
+
+    // Scale addresses we remember before starting over
+    private static final int MAX_SCALES = 32;
+
+    private static class ScaleState {
+        int payload;
+        long deliveredAt;
+        int fixedWeight;
+        int unit;
+    }
+
+    private final Map<String, ScaleState> mScales = new HashMap<>();
+    private ScaleState mCurrent;
+
+    /**
+     * @return true if the record has the WIT scale packet magic
+     */
+    public static boolean isScaleRecord(byte[] scanRecord) {
+        return scanRecord != null && scanRecord.length > MIN_RECORD_LENGTH
+                && scanRecord[3] == 0x07 && scanRecord[19] == 0x09 && scanRecord[20] == 0x00;
+    }
+
+    /**
+     * Decodes a scan record from the scale at address. After WEIGHT, the getters return the
+     * reading for that scale.
+     *
+     * @return NOT_A_SCALE, UNCHANGED if the same reading was sent less than REPEAT_MS ago,
+     *         otherwise WEIGHT
+     */
+    public int decode(String address, byte[] scanRecord, long now) {
+        if (!isScaleRecord(scanRecord)) {
+            return NOT_A_SCALE;
+        }
+
+        int payload = ((scanRecord[21] & 0xFF) << 24) | ((scanRecord[22] & 0xFF) << 16)
+                | ((scanRecord[23] & 0xFF) << 8) | (scanRecord[24] & 0xFF);
+
+        ScaleState state = mScales.get(address);
+        if (state != null && state.payload == payload) {
+            if (now - state.deliveredAt < REPEAT_MS) {
+                return UNCHANGED;
+            }
+            state.deliveredAt = now;
+            mCurrent = state;
+            return WEIGHT;
+        }
+
+        if (state == null) {
+            if (mScales.size() >= MAX_SCALES) {
+                mScales.clear();
+            }
+            state = new ScaleState();
+            mScales.put(address, state);
+        }
+
+        int key = scanRecord[22];
+
+        // 6 digits of weight data stored in 3 bytes (2 nibbles each), in hundredths
+        int numThousandHundreds = (scanRecord[22] ^ key) & 0xFF;
+        int numTensOne = (scanRecord[23] ^ key) & 0xFF;
+        int numDecimalPlace = (scanRecord[24] ^ key) & 0xFF;
+        int hundredths = (numThousandHundreds >> 4) * 100000 + (numThousandHundreds & 15) * 10000
+                + (numTensOne >> 4) * 1000 + (numTensOne & 15) * 100
+                + (numDecimalPlace >> 4) * 10 + (numDecimalPlace & 15);
+
+        int weightType = scanRecord[21] ^ key;
+
+        // Check for negative Flags, scale appears to be inconsistent about flagging this though
+        if ((weightType & 0x60) == 0x60) {
+            hundredths = -hundredths;
+        }
+
+        // Status is different prior to "hold" of weight, so we'll filter out some bits
+        weightType = (weightType >> 1) & 0x0B;
+
+        switch (weightType) {
+            case UNIT_KG:
+            case UNIT_LBS:
+            case UNIT_G:
+            case UNIT_OZ:
+                state.unit = weightType;
+                state.fixedWeight = hundredths;
+                break;
+            default:
+                state.unit = UNIT_UNKNOWN;
+                state.fixedWeight = 0;
+        }
+        state.payload = payload;
+        state.deliveredAt = now;
+        mCurrent = state;
+        return WEIGHT;
+    }
+
+    /**
+     * @return the last weight as a fixed point number, divide by getDivisor() for the value
+     */
+    public int getFixedWeight() {
+        return mCurrent.fixedWeight;
+    }
+
+    public int getUnit() {
+        return mCurrent.unit;
+    }
+
+    // Grams come through as whole numbers and ounces with one decimal, like on the scale display
+    public int getDivisor() {
+        switch (mCurrent.unit) {
+            case UNIT_G:
+                return 1;
+            case UNIT_OZ:
+                return 10;
+            default:
+                return 100;
+        }
+    }
+
+    public float getWeight() {
+        return (float) mCurrent.fixedWeight / getDivisor();
+    }
+
+    public String getUnitName() {
+        return getUnitName(mCurrent.unit);
+    }
+
+    public static String getUnitName(int unit) {
+        switch (unit) {
+            case UNIT_KG:
+                return "KG";
+            case UNIT_LBS:
+                return "LBS";
+            case UNIT_G:
+                return "G";
+            case UNIT_OZ:
+                return "OZ";
+            default:
+                return "unknown";
+        }
+    }
+}
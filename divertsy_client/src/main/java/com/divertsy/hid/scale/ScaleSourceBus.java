@@ -0,0 +1,184 @@
+package com.divertsy.hid.scale;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  ScaleSourceBus hands weight readings from every kind of scale to whoever shows or saves them,
+ *  inside the app process and always on the main thread.
+ *
+ *  Each source is rate limited, keeping only its latest reading when it sends faster than that.
+ *  Sources also have a priority: manual entry beats a USB scale, which beats a BLE scale. Once a
+ *  source delivers a reading it holds the bus for a short time, and lower priority sources are
+ *  dropped until the hold runs out. That way the display doesn't flip between two scales.
+ *  Only readings that aren't 0, or that changed, take or renew a hold, and idle readings from
+ *  any other source are dropped while one is held, so whichever scale is in use wins.
+ */
+public class ScaleSourceBus {
+
+    private static final String TAG = "ScaleSourceBus";
+
+    // Sources in order of priority, lowest first
+    public static final int SOURCE_BLE = 0;
+    public static final int SOURCE_USB = 1;
+    public static final int SOURCE_MANUAL = 2;
+    private static final int SOURCE_COUNT = 3;
+
+    // Shortest time between two readings from the same source
+    private static final long[] MIN_INTERVAL_MS = {250, 100, 0};
+
+    // How long a source keeps lower priority ones off the bus after its last reading.
+    // A manual entry holds until it gets saved or this runs out.
+    private static final long[] HOLD_MS = {1500, 1500, 60000};
+
+    public interface Listener {
+        void onScaleReading(ScaleReading reading);
+    }
+
+    /**
+     * One weight reading. time is from SystemClock.elapsedRealtime().
+     */
+    public static class ScaleReading {
+        public final int source;
+        public final double weight;
+        public final String unit;
+        public final String scaleName;
+        public final long time;
+
+        public ScaleReading(int source, double weight, String unit, String scaleName, long time) {
+            this.source = source;
+            this.weight = weight;
+            this.unit = unit;
+            this.scaleName = scaleName;
+            this.time = time;
+        }
+    }
+
+    private static ScaleSourceBus sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    // Per source state, only touched on the main thread
+    private final long[] mLastDelivered = new long[SOURCE_COUNT];
+    private final long[] mHoldUntil = new long[SOURCE_COUNT];
+    private final double[] mLastWeight = new double[SOURCE_COUNT];
+    private final ScaleReading[] mPending = new ScaleReading[SOURCE_COUNT];
+    private final Runnable[] mFlushes = new Runnable[SOURCE_COUNT];
+
+    public static synchronized ScaleSourceBus get() {
+        if (sInstance == null) {
+            sInstance = new ScaleSourceBus();
+        }
+        return sInstance;
+    }
+
+    private ScaleSourceBus() {
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            final int source = i;
+            mFlushes[i] = new Runnable() {
+                @Override
+                public void run() {
+                    ScaleReading pending = mPending[source];
+                    mPending[source] = null;
+                    if (pending != null) {
+                        offer(pending);
+                    }
+                }
+            };
+        }
+    }
+
+    // Listeners are added and removed on the main thread
+    public void subscribe(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Sends a reading from a scale source. Can be called from any thread, readings from the
+     * main thread are delivered right away.
+     */
+    public void publish(int source, double weight, String unit, String scaleName) {
+        final ScaleReading reading = new ScaleReading(source, weight, unit, scaleName,
+                SystemClock.elapsedRealtime());
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            offer(reading);
+        } else {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    offer(reading);
+                }
+            });
+        }
+    }
+
+    /**
+     * Ends the hold of a source, for example once a manual entry has been saved.
+     */
+    public void release(int source) {
+        mHoldUntil[source] = 0;
+    }
+
+    private void offer(ScaleReading reading) {
+        int source = reading.source;
+        long now = SystemClock.elapsedRealtime();
+
+        // A USB scale keeps reporting 0 while nothing is on it. Only a scale that has
+        // something on it, or just had it taken off, takes the bus.
+        boolean active = reading.weight != 0 || reading.weight != mLastWeight[source];
+
+        for (int other = 0; other < SOURCE_COUNT; other++) {
+            if ((other > source || (!active && other != source)) && now < mHoldUntil[other]) {
+                return;
+            }
+        }
+
+        long next = mLastDelivered[source] + MIN_INTERVAL_MS[source];
+        if (mLastDelivered[source] > 0 && now < next) {
+            // Too soon, keep the latest and deliver it when the interval is up
+            if (mPending[source] == null) {
+                mHandler.postDelayed(mFlushes[source], next - now);
+            }
+            mPending[source] = reading;
+            return;
+        }
+
+        mLastDelivered[source] = now;
+        mLastWeight[source] = reading.weight;
+        if (active) {
+            mHoldUntil[source] = now + HOLD_MS[source];
+        }
+        if (mPending[source] != null) {
+            mPending[source] = null;
+            mHandler.removeCallbacks(mFlushes[source]);
+        }
+
+        // A higher priority source in use takes over from the lower ones right away
+        for (int lower = 0; active && lower < source; lower++) {
+            if (mPending[lower] != null) {
+                mPending[lower] = null;
+                mHandler.removeCallbacks(mFlushes[lower]);
+            }
+        }
+
+        for (int i = 0; i < mListeners.size(); i++) {
+            try {
+                mListeners.get(i).onScaleReading(reading);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Scale listener failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.divertsy.hid.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  ChunkedUpload copies a local log file into an upload stream as raw bytes, one fixed size
+ *  chunk at a time through a single reused buffer. The CSV logs are only ever appended to, so
+ *  an upload can start at the byte offset the remote copy already holds instead of at zero.
+ */
+public class ChunkedUpload {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private final byte[] mBuffer = new byte[CHUNK_SIZE];
+    private final ByteBuffer mChunk = ByteBuffer.wrap(mBuffer);
+    private long mPosition;
+
+    /**
+     * Copies everything in source from offset up to its current size into target.
+     *
+     * @param source  the local log file
+     * @param offset  first byte to send, usually the last offset confirmed by the remote side
+     * @param target  where the bytes go, this is flushed but not closed
+     * @return the offset just past the last byte written
+     * @throws IOException if either side fails. getPosition() still reports the last full chunk.
+     */
+    public long copy(FileChannel source, long offset, OutputStream target) throws IOException {
+        mPosition = offset;
+        long end = source.size();
+        while (mPosition < end) {
+            mChunk.clear();
+            if (end - mPosition < CHUNK_SIZE) {
+                mChunk.limit((int) (end - mPosition));
+            }
+            int read = source.read(mChunk, mPosition);
+            if (read < 0) {
+                break;
+            }
+            target.write(mBuffer, 0, read);
+            mPosition += read;
+        }
+        target.flush();
+        return mPosition;
+    }
+
+    /**
+     * @return the offset just past the last chunk that was fully handed to the target
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+}
@@ -0,0 +1,70 @@
+package com.divertsy.hid.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.divertsy.hid.SyncToDriveService;
+import com.divertsy.hid.utils.Utils;
+
+import java.io.File;
+
+/**
+ *  DriveSyncBackend uploads the office CSV log to Google Drive through SyncToDriveService.
+ *  The Drive file is a copy of the log, so a new record just means another upload. The part
+ *  of the log past the last confirmed upload is kept in the SyncOutbox until Drive has it.
+ *  Records are saved on the main thread, so the outbox is updated on the backend's own thread.
+ */
+public class DriveSyncBackend implements SyncBackend {
+
+    private static final String TAG = "DriveSyncBackend";
+
+    private static final String OUTBOX_KEY_PREFIX = "drive:";
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    public DriveSyncBackend() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public static String outboxKey(String office) {
+        return OUTBOX_KEY_PREFIX + office;
+    }
+
+    @Override
+    public String getName() {
+        return "Google Drive";
+    }
+
+    @Override
+    public void onRecordSaved(final Context context, final String office, String jsonRecord) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences prefs = context.getSharedPreferences(
+                        SyncToDriveService.PREFERENCES_NAME, Context.MODE_PRIVATE);
+                long confirmed = prefs.getLong(SyncToDriveService.PREF_UPLOAD_OFFSET + ":" + office, 0);
+                long logLength = new File(Utils.getDivertsyFilePath(office)).length();
+                // In the outbox before the service starts, so it's there if the upload fails
+                SyncOutbox.get(context).extend(outboxKey(office), confirmed, logLength);
+                sync(context);
+            }
+        });
+    }
+
+    @Override
+    public void sync(Context context) {
+        context.startService(new Intent(context, SyncToDriveService.class));
+    }
+
+    @Override
+    public void shutdown() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+}
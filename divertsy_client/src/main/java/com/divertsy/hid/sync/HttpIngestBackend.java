@@ -0,0 +1,235 @@
+package com.divertsy.hid.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *  HttpIngestBackend POSTs records to a Divertsy backend server as gzipped NDJSON, one JSON
+ *  object per line. Records are collected for a short while so a burst of weigh-ins goes out
+ *  as one request, and all requests reuse the keep-alive connection HttpURLConnection pools
+ *  for the host. Everything file and network related runs on the backend's own thread.
+ *
+ *  Records are first appended to a spool file and the unsent part of it is tracked in the
+ *  SyncOutbox, so nothing is lost if a request fails or the process dies before sending.
+ */
+public class HttpIngestBackend implements SyncBackend {
+
+    private static final String TAG = "HttpIngestBackend";
+
+    public static final String PREF_USE_INGEST_SERVER = "use_ingest_server";
+    public static final String PREF_INGEST_URL = "ingest_url";
+
+    // Setting the URL to this starts a LoopbackIngestServer and sends records to it instead
+    public static final String LOOPBACK_URL = "loopback";
+
+    static final String OUTBOX_KEY = "ingest";
+    private static final String SPOOL_FILE_NAME = "ingest_spool.ndjson";
+
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+    static final long FLUSH_DELAY_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mUrl;
+    private final Context mContext;
+    private final File mSpool;
+    private final SyncOutbox mOutbox;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Only touched on mThread
+    private final byte[] mBatch = new byte[MAX_BATCH_BYTES];
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream(16 * 1024);
+    private final byte[] mDrain = new byte[1024];
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    public HttpIngestBackend(Context context, String url) {
+        mUrl = url;
+        mContext = context.getApplicationContext();
+        mSpool = new File(mContext.getFilesDir(), SPOOL_FILE_NAME);
+        mOutbox = SyncOutbox.get(mContext);
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    @Override
+    public String getName() {
+        return "Divertsy Server";
+    }
+
+    @Override
+    public void onRecordSaved(Context context, final String office, final String jsonRecord) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                spool(jsonRecord);
+                SyncOutbox.Range range = mOutbox.getRange(OUTBOX_KEY);
+                if (range == null || range.attempts > 0) {
+                    // Backing off after a failure, the retry alarm will send it
+                    return;
+                }
+                scheduleFlush(range.end - range.start >= MAX_BATCH_BYTES ? 0 : FLUSH_DELAY_MS);
+            }
+        });
+    }
+
+    @Override
+    public void sync(Context context) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFlush(0);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (mFlushScheduled) {
+            if (delayMs > 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mFlush);
+        }
+        mFlushScheduled = true;
+        mHandler.postDelayed(mFlush, delayMs);
+    }
+
+    // Appends the record to the spool file and queues its bytes in the outbox
+    private void spool(String jsonRecord) {
+        try {
+            long start = mSpool.length();
+            FileOutputStream out = new FileOutputStream(mSpool, true);
+            try {
+                out.write(jsonRecord.getBytes(UTF_8));
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+            mOutbox.extend(OUTBOX_KEY, start, mSpool.length());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not spool record: " + e.getMessage());
+        }
+    }
+
+    // Sends the unsent part of the spool in batches until it is all sent or a request fails
+    private void flush() {
+        SyncOutbox.Range range = mOutbox.getRange(OUTBOX_KEY);
+        if (range == null) {
+            truncateSpool();
+            return;
+        }
+        long start = range.start;
+        try {
+            RandomAccessFile spool = new RandomAccessFile(mSpool, "r");
+            try {
+                long end = Math.min(range.end, spool.length());
+                while (start < end) {
+                    int length = (int) Math.min(MAX_BATCH_BYTES, end - start);
+                    spool.seek(start);
+                    spool.readFully(mBatch, 0, length);
+                    // Only send whole records, the rest goes in the next batch
+                    if (start + length < end) {
+                        while (length > 0 && mBatch[length - 1] != '\n') {
+                            length--;
+                        }
+                        if (length == 0) {
+                            throw new IOException("Record larger than " + MAX_BATCH_BYTES + " bytes");
+                        }
+                    }
+                    post(mBatch, length);
+                    start += length;
+                    mOutbox.advance(OUTBOX_KEY, start);
+                    Log.v(TAG, "Sent " + length + " bytes of records");
+                }
+                if (end < range.end) {
+                    // The spool is shorter than the outbox thinks, nothing more to send from it
+                    mOutbox.remove(OUTBOX_KEY);
+                }
+            } finally {
+                spool.close();
+            }
+        } catch (IOException e) {
+            int attempts = mOutbox.recordFailure(OUTBOX_KEY);
+            Log.e(TAG, "Ingest request failed (" + attempts + " in a row): " + e.getMessage());
+            RetryScheduler.schedule(mContext, attempts);
+            return;
+        }
+        truncateSpool();
+    }
+
+    // Once everything has been sent the spool can start over
+    private void truncateSpool() {
+        if (mOutbox.getRange(OUTBOX_KEY) == null && mSpool.length() > 0) {
+            if (!mSpool.delete()) {
+                Log.e(TAG, "Could not clear spool file");
+            }
+        }
+    }
+
+    private void post(byte[] records, int length) throws IOException {
+        mBody.reset();
+        GZIPOutputStream gzip = new GZIPOutputStream(mBody);
+        gzip.write(records, 0, length);
+        gzip.close();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(mBody.size());
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+
+        OutputStream out = connection.getOutputStream();
+        mBody.writeTo(out);
+        out.close();
+
+        int status = connection.getResponseCode();
+        // Read the response to the end so the connection goes back in the keep-alive pool
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            while (in.read(mDrain) != -1) {
+                // discard
+            }
+            in.close();
+        }
+        if (status < 200 || status >= 300) {
+            throw new IOException("HTTP " + status + " from " + mUrl);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.divertsy.hid.sync;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ *  LoopbackIngestServer is a stand-in for the Divertsy backend that listens on 127.0.0.1.
+ *  It understands just enough HTTP/1.1 to accept keep-alive NDJSON POSTs from HttpIngestBackend,
+ *  counts what it gets, and can be told to fail every Nth request. This makes it possible to
+ *  check throughput and retry behavior on a tablet without a network or a real server.
+ */
+public class LoopbackIngestServer {
+
+    private static final String TAG = "LoopbackIngestServer";
+
+    public static final String PREF_FAIL_EVERY = "ingest_loopback_fail_every";
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] RESPONSE_OK =
+            "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: keep-alive\r\n\r\n".getBytes(ISO_8859_1);
+    private static final byte[] RESPONSE_FAIL =
+            "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: keep-alive\r\n\r\n".getBytes(ISO_8859_1);
+
+    private ServerSocket mServerSocket;
+    private volatile int mFailEvery;
+
+    private int mConnections;
+    private int mRequests;
+    private long mRecords;
+    private long mBytes;
+
+    public synchronized void start() {
+        if (mServerSocket != null) {
+            return;
+        }
+        try {
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open loopback socket: " + e.getMessage());
+            return;
+        }
+        Thread acceptThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.i(TAG, "Listening on " + getUrl());
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+            mServerSocket = null;
+        }
+    }
+
+    public synchronized String getUrl() {
+        int port = mServerSocket == null ? 0 : mServerSocket.getLocalPort();
+        return "http://127.0.0.1:" + port + "/ingest";
+    }
+
+    /**
+     * @param failEvery answer every Nth request with a 503, or 0 to accept everything
+     */
+    public void setFailEvery(int failEvery) {
+        mFailEvery = Math.max(0, failEvery);
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "%d connections, %d requests, %d records, %d bytes",
+                mConnections, mRequests, mRecords, mBytes);
+    }
+
+    private void acceptLoop() {
+        ServerSocket serverSocket;
+        synchronized (this) {
+            serverSocket = mServerSocket;
+        }
+        while (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                synchronized (this) {
+                    mConnections++;
+                }
+                new Thread(TAG + "-conn") {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.e(TAG, "Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Handles requests on one connection until the client closes it
+    private void serve(Socket socket) {
+        byte[] body = new byte[8 * 1024];
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                int contentLength = 0;
+                boolean gzip = false;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    String lower = header.toLowerCase(Locale.US);
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    } else if (lower.startsWith("content-encoding:") && lower.contains("gzip")) {
+                        gzip = true;
+                    }
+                }
+                if (body.length < contentLength) {
+                    body = new byte[contentLength];
+                }
+                int read = 0;
+                while (read < contentLength) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+
+                int request;
+                synchronized (this) {
+                    request = ++mRequests;
+                    mBytes += contentLength;
+                }
+                int failEvery = mFailEvery;
+                if (failEvery > 0 && request % failEvery == 0) {
+                    Log.w(TAG, "Failing request " + request + ": " + requestLine);
+                    out.write(RESPONSE_FAIL);
+                } else {
+                    long records = countLines(body, contentLength, gzip);
+                    synchronized (this) {
+                        mRecords += records;
+                    }
+                    out.write(RESPONSE_OK);
+                    Log.v(TAG, "Accepted " + records + " records. Totals: " + getStats());
+                }
+                out.flush();
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Connection ended: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    private static long countLines(byte[] body, int length, boolean gzip) throws IOException {
+        InputStream in = new ByteArrayInputStream(body, 0, length);
+        if (gzip) {
+            in = new GZIPInputStream(in);
+        }
+        long lines = 0;
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    // Reads one CRLF terminated header line, or returns null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
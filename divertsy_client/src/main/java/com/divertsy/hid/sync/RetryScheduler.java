@@ -0,0 +1,72 @@
+package com.divertsy.hid.sync;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ *  RetryScheduler sets an alarm to run SyncBackends.syncAll again after a failed upload.
+ *  The delay doubles with every failure in a row up to MAX_DELAY_MS, and a random part of it
+ *  is dropped so a room full of tablets coming back online don't all retry at the same moment.
+ *  The alarm fires SyncRetryReceiver, which also works after the process was killed.
+ */
+public class RetryScheduler {
+
+    private static final String TAG = "RetryScheduler";
+
+    static final long BASE_DELAY_MS = 15 * 1000;
+    static final long MAX_DELAY_MS = 60 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+    private static long sNextRetryAt;
+
+    private RetryScheduler() {
+    }
+
+    /**
+     * Backoff for the given number of failures in a row, before jitter.
+     */
+    static long backoffMillis(int attempts) {
+        if (attempts <= 0) {
+            return 0;
+        }
+        int shift = Math.min(attempts - 1, 20);
+        return Math.min(MAX_DELAY_MS, BASE_DELAY_MS << shift);
+    }
+
+    /**
+     * Schedules a retry for a key that has failed attempts times in a row. An earlier retry that
+     * is already scheduled is kept, since it will cover this key too.
+     */
+    public static synchronized void schedule(Context context, int attempts) {
+        long backoff = backoffMillis(attempts);
+        // Equal jitter: keep half the backoff and randomize the other half
+        long delay = backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+        long at = SystemClock.elapsedRealtime() + delay;
+        if (sNextRetryAt > SystemClock.elapsedRealtime() && sNextRetryAt <= at) {
+            return;
+        }
+        sNextRetryAt = at;
+        Log.i(TAG, "Retrying sync in " + (delay / 1000) + "s after " + attempts + " failures");
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, getRetryIntent(context));
+    }
+
+    /**
+     * Called when the retry alarm fires.
+     */
+    static synchronized void onRetry() {
+        sNextRetryAt = 0;
+    }
+
+    private static PendingIntent getRetryIntent(Context context) {
+        Intent intent = new Intent(context, SyncRetryReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,35 @@
+package com.divertsy.hid.sync;
+
+import android.content.Context;
+
+/**
+ *  SyncBackend is a destination for recorded weights. Every enabled backend is told about each
+ *  record after it has been written to the local office log, and decides for itself when and
+ *  how to send it. See SyncBackends for the list of backends and how they are enabled.
+ */
+public interface SyncBackend {
+
+    /**
+     * @return a short name for logs and messages
+     */
+    String getName();
+
+    /**
+     * Called on the main thread after a measurement was appended to the office CSV log.
+     *
+     * @param context     application context
+     * @param office      office the record was saved under
+     * @param jsonRecord  the record as a single line JSON object
+     */
+    void onRecordSaved(Context context, String office, String jsonRecord);
+
+    /**
+     * Send anything that has not been sent yet, without waiting for more records.
+     */
+    void sync(Context context);
+
+    /**
+     * Stop any threads and drop open connections. The backend is not used again afterwards.
+     */
+    void shutdown();
+}
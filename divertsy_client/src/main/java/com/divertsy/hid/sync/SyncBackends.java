@@ -0,0 +1,107 @@
+package com.divertsy.hid.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.divertsy.hid.SyncToDriveService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  SyncBackends keeps the process wide instances of each sync backend and returns the ones
+ *  enabled in the Sync settings. Backends are built on first use and rebuilt when their
+ *  settings change.
+ */
+public class SyncBackends {
+
+    private static final String TAG = "SyncBackends";
+
+    private static DriveSyncBackend sDriveBackend;
+    private static HttpIngestBackend sIngestBackend;
+    private static LoopbackIngestServer sLoopbackServer;
+
+    private SyncBackends() {
+    }
+
+    public static synchronized List<SyncBackend> getEnabled(Context context) {
+        SharedPreferences prefs = context.getApplicationContext()
+                .getSharedPreferences(SyncToDriveService.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        List<SyncBackend> backends = new ArrayList<>();
+
+        if (prefs.getBoolean(SyncToDriveService.PREF_USE_GOOGLE_DRIVE, false)) {
+            if (sDriveBackend == null) {
+                sDriveBackend = new DriveSyncBackend();
+            }
+            backends.add(sDriveBackend);
+        }
+
+        String url = prefs.getString(HttpIngestBackend.PREF_INGEST_URL, "").trim();
+        if (prefs.getBoolean(HttpIngestBackend.PREF_USE_INGEST_SERVER, false) && url.length() > 0) {
+            if (HttpIngestBackend.LOOPBACK_URL.equalsIgnoreCase(url)) {
+                url = getLoopbackServer().getUrl();
+                sLoopbackServer.setFailEvery(parseInt(
+                        prefs.getString(LoopbackIngestServer.PREF_FAIL_EVERY, "0")));
+            }
+            if (sIngestBackend == null || !sIngestBackend.getUrl().equals(url)) {
+                if (sIngestBackend != null) {
+                    sIngestBackend.shutdown();
+                }
+                Log.i(TAG, "Starting ingest backend for " + url);
+                sIngestBackend = new HttpIngestBackend(context, url);
+            }
+            backends.add(sIngestBackend);
+        } else if (sIngestBackend != null) {
+            sIngestBackend.shutdown();
+            sIngestBackend = null;
+        }
+
+        return backends;
+    }
+
+    /**
+     * Hands a freshly saved record to every enabled backend.
+     */
+    public static void recordSaved(Context context, String office, String jsonRecord) {
+        for (SyncBackend backend : getEnabled(context)) {
+            backend.onRecordSaved(context.getApplicationContext(), office, jsonRecord);
+        }
+    }
+
+    /**
+     * Asks every enabled backend to send what it still has.
+     */
+    public static void syncAll(Context context) {
+        for (SyncBackend backend : getEnabled(context)) {
+            backend.sync(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * Schedules a retry if the outbox still holds data from before the app was restarted.
+     */
+    public static void resumePending(Context context) {
+        int depth = SyncOutbox.get(context).getQueueDepth();
+        if (depth > 0) {
+            Log.i(TAG, depth + " files still have unsent data");
+            RetryScheduler.schedule(context.getApplicationContext(), 1);
+        }
+    }
+
+    private static LoopbackIngestServer getLoopbackServer() {
+        if (sLoopbackServer == null) {
+            sLoopbackServer = new LoopbackIngestServer();
+            sLoopbackServer.start();
+        }
+        return sLoopbackServer;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.divertsy.hid.sync;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  SyncExecutor runs sync work on a small, bounded pool of background threads. Work is keyed,
+ *  usually by office, and at most one run per key is queued or running at a time. Asking for a
+ *  key that is already in flight just marks it to run once more when the current run ends, so
+ *  a burst of saves turns into at most two uploads of the same file.
+ */
+public class SyncExecutor {
+
+    private static final String TAG = "SyncExecutor";
+
+    static final int MAX_THREADS = 2;
+    static final int MAX_QUEUED = 16;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Map<String, Flight> mFlights = new HashMap<>();
+
+    private static class Flight {
+        Future<?> future;
+        boolean runAgain;
+    }
+
+    public SyncExecutor() {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + "-" + (++mCount));
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs work for key, or merges into the run already in flight for that key.
+     *
+     * @return false if the pool is shut down or its queue is full
+     */
+    public synchronized boolean submit(final String key, final Runnable work) {
+        Flight flight = mFlights.get(key);
+        if (flight != null) {
+            Log.v(TAG, "Merging into in-flight sync for " + key);
+            flight.runAgain = true;
+            return true;
+        }
+
+        final Flight newFlight = new Flight();
+        try {
+            newFlight.future = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        do {
+                            synchronized (SyncExecutor.this) {
+                                newFlight.runAgain = false;
+                            }
+                            try {
+                                work.run();
+                            } catch (RuntimeException e) {
+                                Log.e(TAG, "Sync for " + key + " failed: " + e.getMessage());
+                            }
+                        } while (shouldRunAgain(key, newFlight));
+                    } finally {
+                        // An Error gets past the catch, the key must not stay in flight forever
+                        endFlight(key, newFlight);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Sync queue full, skipping " + key);
+            return false;
+        }
+        mFlights.put(key, newFlight);
+        return true;
+    }
+
+    // Ends the flight unless another request came in while it was running
+    private synchronized boolean shouldRunAgain(String key, Flight flight) {
+        if (flight.runAgain && !Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        endFlight(key, flight);
+        return false;
+    }
+
+    // Only if it's still ours, a new flight may have started for key since this one ended
+    private synchronized void endFlight(String key, Flight flight) {
+        if (mFlights.get(key) == flight) {
+            mFlights.remove(key);
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return mFlights.isEmpty();
+    }
+
+    /**
+     * Cancels queued work, interrupts running work and stops accepting more.
+     */
+    public synchronized void shutdown() {
+        List<String> keys = new ArrayList<>(mFlights.keySet());
+        for (String key : keys) {
+            Log.i(TAG, "Cancelling sync for " + key);
+            mFlights.get(key).future.cancel(true);
+        }
+        mFlights.clear();
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,311 @@
+package com.divertsy.hid.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  SyncOutbox remembers which byte ranges of which log files a backend has not sent yet.
+ *  Each entry is a key (one per backend and file) with the range [start, end), the time the
+ *  oldest unsent byte was queued, and how many attempts in a row have failed.
+ *
+ *  The table lives in a small memory mapped file in the app's private storage, so an update is
+ *  a few stores into the mapping and it is still there after the process gets killed. If the
+ *  file can't be mapped the table is kept in memory instead, and is lost with the process.
+ */
+public class SyncOutbox {
+
+    private static final String TAG = "SyncOutbox";
+    private static final String FILE_NAME = "sync_outbox.bin";
+
+    private static final int MAGIC = 0x44564f42;  // "DVOB"
+    private static final int VERSION = 1;
+    private static final int CAPACITY = 32;
+    private static final int HEADER_SIZE = 16;
+
+    // Entry layout: used(1) keyLength(1) key(MAX_KEY_BYTES) start(8) end(8) queuedAt(8) attempts(4)
+    private static final int MAX_KEY_BYTES = 46;
+    private static final int ENTRY_SIZE = 80;
+    private static final int OFF_KEY_LENGTH = 1;
+    private static final int OFF_KEY = 2;
+    private static final int OFF_START = OFF_KEY + MAX_KEY_BYTES;
+    private static final int OFF_END = OFF_START + 8;
+    private static final int OFF_QUEUED_AT = OFF_END + 8;
+    private static final int OFF_ATTEMPTS = OFF_QUEUED_AT + 8;
+
+    private static final int SIZE = HEADER_SIZE + CAPACITY * ENTRY_SIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static SyncOutbox sInstance;
+
+    // Memory mapped, or a plain buffer if the file couldn't be mapped
+    private final ByteBuffer mMap;
+
+    /**
+     * A copy of one outbox entry.
+     */
+    public static class Range {
+        public final String key;
+        public final long start;
+        public final long end;
+        public final long queuedAt;
+        public final int attempts;
+
+        Range(String key, long start, long end, long queuedAt, int attempts) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.queuedAt = queuedAt;
+            this.attempts = attempts;
+        }
+    }
+
+    public static synchronized SyncOutbox get(Context context) {
+        if (sInstance == null) {
+            ByteBuffer buffer;
+            try {
+                buffer = map(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            } catch (IOException e) {
+                // Better to lose the queue on a restart than to crash the kiosk
+                Log.e(TAG, "Could not map outbox file, keeping it in memory: " + e.getMessage());
+                buffer = ByteBuffer.allocate(SIZE);
+            }
+            sInstance = new SyncOutbox(buffer);
+        }
+        return sInstance;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private SyncOutbox(ByteBuffer map) {
+        mMap = map;
+        if (mMap.getInt(0) != MAGIC || mMap.getInt(4) != VERSION) {
+            Log.i(TAG, "Starting a new outbox");
+            for (int i = 0; i < mMap.capacity(); i++) {
+                mMap.put(i, (byte) 0);
+            }
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, VERSION);
+            mMap.putInt(8, CAPACITY);
+            force();
+        }
+    }
+
+    /**
+     * Queues bytes up to end. A new entry starts at start, an existing one only grows.
+     */
+    public synchronized void extend(String key, long start, long end) {
+        int slot = find(key);
+        if (slot < 0) {
+            if (start >= end) {
+                return;
+            }
+            slot = findFree();
+            if (slot < 0) {
+                Log.e(TAG, "Outbox full, dropping " + key);
+                return;
+            }
+            int base = offset(slot);
+            byte[] keyBytes = encodeKey(key);
+            mMap.put(base, (byte) 1);
+            mMap.put(base + OFF_KEY_LENGTH, (byte) keyBytes.length);
+            for (int i = 0; i < keyBytes.length; i++) {
+                mMap.put(base + OFF_KEY + i, keyBytes[i]);
+            }
+            mMap.putLong(base + OFF_START, start);
+            mMap.putLong(base + OFF_END, end);
+            mMap.putLong(base + OFF_QUEUED_AT, System.currentTimeMillis());
+            mMap.putInt(base + OFF_ATTEMPTS, 0);
+        } else {
+            int base = offset(slot);
+            if (end > mMap.getLong(base + OFF_END)) {
+                mMap.putLong(base + OFF_END, end);
+            }
+        }
+        force();
+    }
+
+    /**
+     * Marks everything before newStart as sent and clears the failure count. The entry goes away
+     * once nothing is left in it.
+     */
+    public synchronized void advance(String key, long newStart) {
+        int slot = find(key);
+        if (slot < 0) {
+            return;
+        }
+        int base = offset(slot);
+        if (newStart >= mMap.getLong(base + OFF_END)) {
+            mMap.put(base, (byte) 0);
+        } else {
+            mMap.putLong(base + OFF_START, newStart);
+            mMap.putInt(base + OFF_ATTEMPTS, 0);
+        }
+        force();
+    }
+
+    /**
+     * @return the number of failed attempts in a row, including this one
+     */
+    public synchronized int recordFailure(String key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return 0;
+        }
+        int base = offset(slot);
+        int attempts = mMap.getInt(base + OFF_ATTEMPTS) + 1;
+        mMap.putInt(base + OFF_ATTEMPTS, attempts);
+        force();
+        return attempts;
+    }
+
+    public synchronized void remove(String key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mMap.put(offset(slot), (byte) 0);
+            force();
+        }
+    }
+
+    public synchronized Range getRange(String key) {
+        int slot = find(key);
+        return slot < 0 ? null : read(slot);
+    }
+
+    public synchronized List<Range> getRanges() {
+        List<Range> ranges = new ArrayList<>();
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            if (mMap.get(offset(slot)) != 0) {
+                ranges.add(read(slot));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return how many files have unsent data
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            if (mMap.get(offset(slot)) != 0) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            int base = offset(slot);
+            if (mMap.get(base) != 0) {
+                bytes += mMap.getLong(base + OFF_END) - mMap.getLong(base + OFF_START);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return how long the oldest unsent data has been waiting, or 0 if everything is sent
+     */
+    public synchronized long getSyncLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            int base = offset(slot);
+            if (mMap.get(base) != 0) {
+                oldest = Math.min(oldest, mMap.getLong(base + OFF_QUEUED_AT));
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    private Range read(int slot) {
+        int base = offset(slot);
+        return new Range(readKey(base),
+                mMap.getLong(base + OFF_START),
+                mMap.getLong(base + OFF_END),
+                mMap.getLong(base + OFF_QUEUED_AT),
+                mMap.getInt(base + OFF_ATTEMPTS));
+    }
+
+    // Writes the changes through to the file, when there is one
+    private void force() {
+        if (mMap instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mMap).force();
+        }
+    }
+
+    private int find(String key) {
+        byte[] keyBytes = encodeKey(key);
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            int base = offset(slot);
+            if (mMap.get(base) != 0 && keyEquals(base, keyBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int findFree() {
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            if (mMap.get(offset(slot)) == 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int base, byte[] keyBytes) {
+        if (mMap.get(base + OFF_KEY_LENGTH) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (mMap.get(base + OFF_KEY + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(int base) {
+        byte[] keyBytes = new byte[mMap.get(base + OFF_KEY_LENGTH)];
+        for (int i = 0; i < keyBytes.length; i++) {
+            keyBytes[i] = mMap.get(base + OFF_KEY + i);
+        }
+        return new String(keyBytes, UTF_8);
+    }
+
+    // Long office names are cut off, which only matters if two of them share the first bytes
+    private static byte[] encodeKey(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length <= MAX_KEY_BYTES) {
+            return keyBytes;
+        }
+        byte[] truncated = new byte[MAX_KEY_BYTES];
+        System.arraycopy(keyBytes, 0, truncated, 0, MAX_KEY_BYTES);
+        return truncated;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,24 @@
+package com.divertsy.hid.sync;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ *  SyncRetryReceiver runs when a retry alarm set by RetryScheduler goes off and asks every
+ *  enabled backend to send what is still in the outbox.
+ */
+public class SyncRetryReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "SyncRetryReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        RetryScheduler.onRetry();
+        SyncOutbox outbox = SyncOutbox.get(context);
+        Log.i(TAG, "Retrying sync. Queue depth: " + outbox.getQueueDepth()
+                + " lag: " + (outbox.getSyncLagMillis() / 1000) + "s");
+        SyncBackends.syncAll(context);
+    }
+}
@@ -3,13 +3,20 @@ package com.divertsy.hid.usb;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import android.util.Log;
+
 import com.divertsy.hid.ScaleApplication;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class ScaleMeasurement {
 
+    private static final String TAG = "ScaleMeasurement";
+
     private double scaleWeight;
     private String unit;
     private final double rawScaleWeight;
@@ -51,6 +58,30 @@ public class ScaleMeasurement {
         "}]";
     }
 
+    /**
+     * The same fields as toCSV as one valid JSON object on a single line, for NDJSON uploads.
+     */
+    @NonNull
+    public String toJsonRecord(@NonNull String office, @NonNull String weightType, @Nullable String floor, @Nullable String location) {
+        JSONObject record = new JSONObject();
+        try {
+            record.put("scalename", ScaleApplication.get().getDeviceId());
+            record.put("office", office);
+            record.put("weight", scaleWeight);
+            record.put("type", weightType);
+            record.put("unit", unit);
+            record.put("time", (int)(now / 1000));
+            record.put("date", date);
+            record.put("date_time", date_time);
+            record.put("bin_info", rawScaleWeight);
+            if (floor != null) record.put("floor", floor);
+            if (location != null) record.put("location", location);
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not build JSON record: " + e.getMessage());
+        }
+        return record.toString();
+    }
+
     @NonNull
     private  String cleanForCSV(@Nullable String input){
         if (input == null)
@@ -83,6 +83,7 @@ public class UsbScaleManager {
     private PendingIntent mPermissionIntent;
     private Timer myTimer = new Timer();
     private final Handler uiHandler = new Handler();
+    private boolean mNeedsDeviceSearch;
 
     private AlertDialog adScaleWarning;
 
@@ -135,10 +136,20 @@ public class UsbScaleManager {
         if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
             setUSBDevice(device);
         } else {
-            searchForDevice(context);
+            // Listing the devices is slow, the caller does it off the main thread and then
+            // calls searchForDevice()
+            mNeedsDeviceSearch = true;
         }
     }
 
+    /**
+     * @return true if we weren't started for an attached device, so searchForDevice() should
+     *         be called with the current device list
+     */
+    public boolean needsDeviceSearch() {
+        return mNeedsDeviceSearch;
+    }
+
     public void onStart(Context context) {
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
@@ -194,8 +205,12 @@ public class UsbScaleManager {
         }
     }
 
-    private void searchForDevice(Context context) {
-        HashMap<String, UsbDevice> devices = mUsbManager.getDeviceList();
+    /**
+     * Connects to the scale if it's the only device in devices, otherwise asks which one to
+     * use. Call on the main thread, devices can come from getDeviceList() on any thread.
+     */
+    public void searchForDevice(Context context, HashMap<String, UsbDevice> devices) {
+        mNeedsDeviceSearch = false;
         UsbDevice selected = null;
         int num_of_devices = devices.size();
 
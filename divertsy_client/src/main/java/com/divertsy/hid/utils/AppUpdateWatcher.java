@@ -0,0 +1,166 @@
+package com.divertsy.hid.utils;
+
+import android.os.AsyncTask;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ *  AppUpdateWatcher finds the newest update APK in the Divertsy folder and keeps watching the
+ *  folder, so a file dropped in by the sync tool is offered within seconds, without a restart.
+ *
+ *  The folder is listed once on a background thread when watching starts, parsing each file's
+ *  version one time. After that every new file is compared with the newest one seen so far,
+ *  and the folder is only listed again if that newest file goes away.
+ */
+public class AppUpdateWatcher extends FileObserver {
+
+    private static final String TAG = "AppUpdateWatcher";
+
+    // A file is ready once the sync tool closes it or renames it into the folder
+    private static final int EVENTS = CLOSE_WRITE | MOVED_TO | DELETE | MOVED_FROM;
+
+    public interface Listener {
+        /**
+         * Called on the main thread with an APK newer than the running build.
+         */
+        void onUpdateAvailable(File apk);
+    }
+
+    // The newest version already offered in this process, so a recreated Activity doesn't
+    // ask again for the same file. Only touched on the main thread.
+    private static int sOfferedVersion = AppUpdater.NO_VERSION;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final File mFolder;
+    private final Listener mListener;
+    private final int mBuildNumber;
+
+    // Guarded by this, the first listing and file events come in on different threads
+    private File mNewest;
+    private int mNewestVersion = AppUpdater.NO_VERSION;
+    private boolean mWatching;
+
+    public AppUpdateWatcher(Listener listener) {
+        super(AppUpdater.SD_CARD_PATH, EVENTS);
+        mFolder = new File(AppUpdater.SD_CARD_PATH);
+        mListener = listener;
+        mBuildNumber = Utils.getBuildNumber();
+    }
+
+    /**
+     * Starts watching the folder and looks at what's already in it, off the main thread.
+     */
+    public void start() {
+        synchronized (this) {
+            if (mWatching) {
+                return;
+            }
+            mWatching = true;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The folder has to exist to be watched
+                if (!mFolder.isDirectory() && !mFolder.mkdirs()) {
+                    Log.w(TAG, "Can't create " + mFolder);
+                }
+                synchronized (AppUpdateWatcher.this) {
+                    if (!mWatching) {
+                        return;
+                    }
+                    startWatching();
+                }
+                index();
+            }
+        });
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mWatching = false;
+            stopWatching();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+        if (path == null) {
+            return;
+        }
+        int version = AppUpdater.parseVersion(path);
+        if (version == AppUpdater.NO_VERSION) {
+            if (path.endsWith(".apk")) {
+                Log.e(TAG, "Ignoring update file with no version: " + path);
+            }
+            return;
+        }
+
+        if ((event & (DELETE | MOVED_FROM)) != 0) {
+            boolean lostNewest;
+            synchronized (this) {
+                lostNewest = mNewest != null && mNewest.getName().equals(path);
+            }
+            if (lostNewest) {
+                index();
+            }
+            return;
+        }
+
+        synchronized (this) {
+            consider(new File(mFolder, path), version);
+        }
+        offerNewest();
+    }
+
+    // Finds the newest file in one pass over the folder
+    private void index() {
+        long started = StartupTrace.begin("AppUpdateWatcher.index");
+        File[] files = mFolder.listFiles();
+        synchronized (this) {
+            mNewest = null;
+            mNewestVersion = AppUpdater.NO_VERSION;
+            if (files != null) {
+                for (File file : files) {
+                    consider(file, AppUpdater.parseVersion(file.getName()));
+                }
+            }
+        }
+        StartupTrace.end("AppUpdateWatcher.index", started);
+        offerNewest();
+    }
+
+    private void consider(File file, int version) {
+        if (version > mNewestVersion) {
+            mNewest = file;
+            mNewestVersion = version;
+        }
+    }
+
+    private void offerNewest() {
+        final File newest;
+        final int version;
+        synchronized (this) {
+            if (!mWatching || mNewestVersion <= mBuildNumber) {
+                return;
+            }
+            newest = mNewest;
+            version = mNewestVersion;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (version <= sOfferedVersion || !newest.exists()) {
+                    return;
+                }
+                sOfferedVersion = version;
+                Log.i(TAG, "Starting Update from File: " + newest);
+                mListener.onUpdateAvailable(newest);
+            }
+        });
+    }
+}
@@ -1,71 +1,44 @@
 package com.divertsy.hid.utils;
 
 import android.os.Environment;
-import android.support.annotation.Nullable;
-import android.util.Log;
-
-import java.io.File;
-import java.util.Arrays;
-import java.util.Comparator;
 
 /**
- *  AppUpdater is called when application starts and checks for a new APK in a specific directory.
- *  This allows remote updates if using a 3rd party syncing tool.
+ *  AppUpdater knows where update APKs get dropped and how their names carry the version.
+ *  This allows remote updates if using a 3rd party syncing tool, AppUpdateWatcher looks out
+ *  for new files while the app runs.
  */
 public class AppUpdater {
 
-    private static final String TAG = AppUpdater.class.getName();
-
-    private static final String SD_CARD_PATH = Environment.getExternalStorageDirectory().getPath() + "/Divertsy/";
-
-    @Nullable
-    public static File checkAppUpdate() {
-        Log.d(TAG, "Entering Update Check");
-
-        // start at the set path
-        String filePath = SD_CARD_PATH;
-        File folder = new File(filePath);
-        File[] files = folder.listFiles();
-
-        if (files != null && files.length > 0) {
-            try {
-                Arrays.sort(files, new Comparator() {
-                    public int compare(Object o1, Object o2) {
+    static final String SD_CARD_PATH = Environment.getExternalStorageDirectory().getPath() + "/Divertsy/";
 
-                        Integer loc = o1.toString().indexOf(".");
-                        String file1tag = o1.toString().substring(loc - 6, loc);
-                        loc = o2.toString().indexOf(".");
-                        String file2tag = o1.toString().substring(loc - 6, loc);
+    static final int NO_VERSION = -1;
 
-                        if (Integer.parseInt(file1tag) > Integer.parseInt(file2tag)) {
-                            return -1;
-                        } else if (Integer.parseInt(file1tag) < Integer.parseInt(file2tag)) {
-                            return +1;
-                        } else {
-                            return 0;
-                        }
-                    }
+    // Update files are named like divertsy-170412.apk, with the build date before the first dot
+    private static final int VERSION_DIGITS = 6;
 
-                });
-
-                if (files[0].exists()) {
-                    filePath = files[0].toString();
-                    Log.d(TAG, "Found update file:" + filePath);
-                    Integer loc = filePath.indexOf(".");
-                    if (Integer.parseInt(filePath.substring(loc - 6, loc)) > Utils.getBuildNumber()) {
-                        Log.i(TAG, "Starting Update from File: " + filePath);
-                        return new File(filePath);
-                    }
+    private AppUpdater() {
+    }
 
-                } else {
-                    Log.d(TAG, "No update files found.");
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "UPDATE CHECK FAIL. Check for INVALID file in Update Folder!");
-                Log.e(TAG, e.toString());
+    /**
+     * @return the version in an update file name, comparable with Utils.getBuildNumber(), or
+     *         NO_VERSION if name isn't an APK or doesn't have the digits in the right place
+     */
+    static int parseVersion(String name) {
+        if (!name.endsWith(".apk")) {
+            return NO_VERSION;
+        }
+        int loc = name.indexOf('.');
+        if (loc < VERSION_DIGITS) {
+            return NO_VERSION;
+        }
+        int version = 0;
+        for (int i = loc - VERSION_DIGITS; i < loc; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_VERSION;
             }
+            version = version * 10 + (c - '0');
         }
-
-        return null;
+        return version;
     }
 }
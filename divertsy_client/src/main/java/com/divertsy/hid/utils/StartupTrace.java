@@ -0,0 +1,89 @@
+package com.divertsy.hid.utils;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ *  StartupTrace times the steps of a cold start. Every step is a systrace section (API 18 and
+ *  up) and gets logged with how long it took and when it finished, counted from process start.
+ *  The time to the first frame of the weight screen is checked against BUDGET_MS, so a slow
+ *  kiosk shows up in the logs with "adb logcat -s StartupTrace".
+ */
+public class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    // How long a cold booted kiosk may take from process start to showing the weight screen
+    public static final long BUDGET_MS = 1000;
+
+    private static long sProcessStart = SystemClock.elapsedRealtime();
+    private static boolean sFirstFrameDrawn;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Starts counting from now, call it first thing in Application.onCreate.
+     */
+    public static void processStarted() {
+        sProcessStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Starts a step on the calling thread.
+     *
+     * @return the start time to pass to end(), which must be called on the same thread
+     */
+    public static long begin(String step) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(step);
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    public static void end(String step, long started) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, step + " took " + (now - started) + " ms, done at +" + (now - sProcessStart)
+                + " ms on " + Thread.currentThread().getName());
+    }
+
+    /**
+     * @return work wrapped in begin() and end(), for running on another thread or later
+     */
+    public static Runnable traced(final String step, final Runnable work) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long started = begin(step);
+                try {
+                    work.run();
+                } finally {
+                    end(step, started);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records that the first frame is drawn. Only the first call after process start counts,
+     * an Activity created again later isn't a cold start.
+     */
+    public static void firstFrameDrawn(String screen) {
+        if (sFirstFrameDrawn) {
+            return;
+        }
+        sFirstFrameDrawn = true;
+        long elapsed = SystemClock.elapsedRealtime() - sProcessStart;
+        if (elapsed > BUDGET_MS) {
+            Log.w(TAG, "First frame of " + screen + " at +" + elapsed + " ms, over the "
+                    + BUDGET_MS + " ms budget");
+        } else {
+            Log.i(TAG, "First frame of " + screen + " at +" + elapsed + " ms");
+        }
+    }
+}
@@ -15,7 +15,9 @@ import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -26,11 +28,45 @@ public class Utils {
     private static final String TAG = "DIVERTSY";
     private static final String LOG_BASE_DIR = Environment.getExternalStorageDirectory().getPath() + "/Documents/";
     private static final String LOG_FILENAME = "divertsy";
+    private static final String SYNC_DIR = Environment.getExternalStorageDirectory().getPath() + "/Divertsy/";
+    private static final String BEACON_LOCATIONS_FILENAME = "beacon_locations.csv";
+    // Not "divertsy-" so it doesn't show up as an office in getDivertsyOffices()
+    private static final String BEACON_LOG_FILENAME = "divertsy_beacons";
 
     public static String getDivertsyFilePath(String office){
         return LOG_BASE_DIR + "/" + LOG_FILENAME + "-" + office + ".csv";
     }
 
+    // Replaces the waste streams built into the app when it's there
+    public static String getWasteStreamsOverridePath(){
+        return SYNC_DIR + "waste_streams.json";
+    }
+
+    // Beacon UID to floor and place table, dropped in the sync folder along with app updates
+    public static String getBeaconLocationsFilePath(){
+        return SYNC_DIR + BEACON_LOCATIONS_FILENAME;
+    }
+
+    public static String getBeaconTelemetryFilePath(String office){
+        return LOG_BASE_DIR + "/" + BEACON_LOG_FILENAME + "-" + office + ".csv";
+    }
+
+    // Every office that has a log file on this device, found by the file names
+    public static List<String> getDivertsyOffices(){
+        List<String> offices = new ArrayList<>();
+        String prefix = LOG_FILENAME + "-";
+        String[] names = new File(LOG_BASE_DIR).list();
+        if (names == null) {
+            return offices;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(".csv") && name.length() > prefix.length() + 4) {
+                offices.add(name.substring(prefix.length(), name.length() - 4));
+            }
+        }
+        return offices;
+    }
+
 
     public static void saveCSV(String office, String text) {
         // Every device should have a /sdcard/ but not all will have "Documents"
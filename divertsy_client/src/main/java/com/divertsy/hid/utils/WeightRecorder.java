@@ -22,6 +22,10 @@ public class WeightRecorder {
     public static final String PREF_TARE_AFTER_ADD = "tare_after_add";
     public static final String PREF_USE_BLE_SCALE = "use_ble_scale";
     public static final String PREF_USE_BEACONS = "use_beacons";
+    public static final String PREF_BLE_DIAGNOSTICS = "ble_diagnostics";
+    public static final String PREF_USE_UID_LOCATIONS = "use_uid_locations";
+    public static final String PREF_BLE_SCALE_POLICY = "ble_scale_policy";
+    public static final String PREF_BLE_SCALE_ADDRESS = "ble_scale_address";
     public static final String PREF_LANGUAGE = "language";
 
     public static final String DEFAULT_OFFICE = "UNKNOWN";
@@ -93,6 +97,22 @@ public class WeightRecorder {
         return mSharedPreferences.getBoolean(PREF_USE_BEACONS, false);
     }
 
+    public boolean useBleDiagnostics() {
+        return mSharedPreferences.getBoolean(PREF_BLE_DIAGNOSTICS, false);
+    }
+
+    public boolean useUidLocations() {
+        return mSharedPreferences.getBoolean(PREF_USE_UID_LOCATIONS, false);
+    }
+
+    public String getBleScalePolicy() {
+        return mSharedPreferences.getString(PREF_BLE_SCALE_POLICY, "nearest");
+    }
+
+    public String getBleScaleAddress() {
+        return mSharedPreferences.getString(PREF_BLE_SCALE_ADDRESS, "");
+    }
+
     public Set<String> getEnabledStreams() {
         return mSharedPreferences.getStringSet(PREF_WASTE_STREAMS,null);
     }
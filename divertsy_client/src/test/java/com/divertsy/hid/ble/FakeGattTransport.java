@@ -0,0 +1,76 @@
+package com.divertsy.hid.ble;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ *  A GattTransport with a pretend peer behind it. Tests bring the link up and down and send
+ *  indications, which only get through for characteristics the client has subscribed to
+ *  since the link last came up, like on a real scale.
+ */
+class FakeGattTransport implements GattTransport {
+
+    private final Set<UUID> mSubscribed = new HashSet<>();
+    private String mAddress;
+    private Callback mCallback;
+    private boolean mConnected;
+    private int mSubscribeCount;
+
+    @Override
+    public void connect(String address, Callback callback) {
+        close();
+        mAddress = address;
+        mCallback = callback;
+    }
+
+    @Override
+    public boolean subscribe(UUID service, UUID characteristic) {
+        if (!mConnected || !WeightScaleClient.WEIGHT_SCALE_SERVICE.equals(service)) {
+            return false;
+        }
+        mSubscribed.add(characteristic);
+        mSubscribeCount++;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mAddress = null;
+        mCallback = null;
+        mConnected = false;
+        mSubscribed.clear();
+    }
+
+    // The peer comes into range and its services are discovered
+    void peerReady() {
+        mConnected = true;
+        mCallback.onReady();
+    }
+
+    // The peer goes out of range and forgets its subscriptions
+    void dropLink() {
+        mConnected = false;
+        mSubscribed.clear();
+        mCallback.onDisconnected();
+    }
+
+    /**
+     * @return false if the client wasn't subscribed, so nothing was sent
+     */
+    boolean indicate(UUID characteristic, byte[] value) {
+        if (!mConnected || !mSubscribed.contains(characteristic)) {
+            return false;
+        }
+        mCallback.onNotification(WeightScaleClient.WEIGHT_SCALE_SERVICE, characteristic, value);
+        return true;
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    int getSubscribeCount() {
+        return mSubscribeCount;
+    }
+}
@@ -0,0 +1,120 @@
+package com.divertsy.hid.ble;
+
+import com.divertsy.hid.scale.ScaleSourceBus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WeightScaleClientTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private final List<ScaleSourceBus.ScaleReading> mReadings = new ArrayList<>();
+    private final ScaleSourceBus.Listener mListener = new ScaleSourceBus.Listener() {
+        @Override
+        public void onScaleReading(ScaleSourceBus.ScaleReading reading) {
+            mReadings.add(reading);
+        }
+    };
+
+    private FakeGattTransport mTransport;
+    private WeightScaleClient mClient;
+    private int mOnReadingCount;
+
+    @Before
+    public void setUp() {
+        ScaleSourceBus.get().subscribe(mListener);
+        mTransport = new FakeGattTransport();
+        mClient = new WeightScaleClient(mTransport, new Runnable() {
+            @Override
+            public void run() {
+                mOnReadingCount++;
+            }
+        });
+        mClient.connect(ADDRESS, "Scale");
+    }
+
+    @After
+    public void tearDown() {
+        mClient.close();
+        ScaleSourceBus.get().unsubscribe(mListener);
+    }
+
+    @Test
+    public void parsesKilogramIndication() {
+        mTransport.peerReady();
+
+        // 14000 steps of 5 g
+        assertTrue(mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT,
+                new byte[]{0x00, (byte) 0xB0, 0x36}));
+
+        assertEquals(1, mReadings.size());
+        ScaleSourceBus.ScaleReading reading = mReadings.get(0);
+        assertEquals(ScaleSourceBus.SOURCE_BLE, reading.source);
+        assertEquals(70.0, reading.weight, 1e-9);
+        assertEquals("KG", reading.unit);
+        assertEquals("Scale", reading.scaleName);
+        assertEquals(1, mOnReadingCount);
+    }
+
+    @Test
+    public void parsesPoundIndication() {
+        mTransport.peerReady();
+
+        // 15432 steps of 0.01 lb, with a time stamp after it that's ignored
+        assertTrue(mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT,
+                new byte[]{0x03, 0x48, 0x3C, (byte) 0xE1, 0x07, 1, 2, 3, 4, 5}));
+
+        assertEquals(1, mReadings.size());
+        assertEquals(154.32, mReadings.get(0).weight, 1e-9);
+        assertEquals("LBS", mReadings.get(0).unit);
+    }
+
+    @Test
+    public void ignoresUnsuccessfulMeasurement() {
+        mTransport.peerReady();
+
+        mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT,
+                new byte[]{0x00, (byte) 0xFF, (byte) 0xFF});
+        mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT, new byte[]{0x00, 0x01});
+
+        assertTrue(mReadings.isEmpty());
+        assertEquals(0, mOnReadingCount);
+    }
+
+    @Test
+    public void resubscribesAfterReconnect() {
+        mTransport.peerReady();
+        assertEquals(1, mTransport.getSubscribeCount());
+
+        mTransport.dropLink();
+        assertFalse(mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT,
+                new byte[]{0x00, (byte) 0xB0, 0x36}));
+        assertTrue(mClient.hasScale());
+
+        mTransport.peerReady();
+        assertEquals(2, mTransport.getSubscribeCount());
+        assertTrue(mTransport.indicate(WeightScaleClient.WEIGHT_MEASUREMENT,
+                new byte[]{0x00, (byte) 0xB0, 0x36}));
+        assertEquals(1, mReadings.size());
+        assertEquals(70.0, mReadings.get(0).weight, 1e-9);
+    }
+
+    @Test
+    public void keepsTheLinkWhenConnectingToTheSameScale() {
+        mTransport.peerReady();
+
+        mClient.connect(ADDRESS, "Scale");
+
+        assertEquals(ADDRESS, mTransport.getAddress());
+        assertEquals(1, mTransport.getSubscribeCount());
+    }
+}